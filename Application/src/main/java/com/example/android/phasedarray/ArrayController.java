@@ -0,0 +1,495 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.phasedarray;
+
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Message;
+import android.os.Process;
+
+import com.example.android.common.logger.Log;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Runs the array protocol on a dedicated high priority thread.
+ * <p>
+ * The {@link WiFiDirectService} posts to {@link #getHandler()}. Frames are decoded and acted
+ * on here, together with clock synchronization, so playback never waits behind UI work on
+ * the main thread. Every other message is UI state and is republished to the UI Handler.
+ * <p>
+ * Commands carry their execution time on the group owner's clock. They are converted with
+ * the local {@link PeerClock} and put on the local timeline of the {@link DeadlineScheduler},
+ * so every peer acts at the same moment whenever its copy of the command arrived.
+ */
+public class ArrayController {
+    private static final String TAG = "ArrayController";
+
+    // Control thread messages, outside the range of the Constants message types
+    private static final int MESSAGE_REPAIR_TIMEOUT = 100;
+    private static final int MESSAGE_STARTED = 101;
+    private static final int MESSAGE_SYNC_ROUND = 102;
+
+    // How long commands wait behind a missing one before it is given up on
+    private static final long REPAIR_TIMEOUT_MS = 100;
+
+    // Starts are handed to the audio callback this far ahead, a few buffers at any size
+    private static final long START_HANDOFF_NANOS = 50000000L;
+
+    // Time after a start for the audio callback to have played it
+    private static final long START_ACK_DELAY_MS = 50;
+
+    // Rounds re-probed in the background while connected, so the skew fit spans several
+    private static final long SYNC_INTERVAL_MS = 5000;
+
+    /**
+     * The audio engine commands are applied to.
+     */
+    public interface AudioOutput {
+        void onPlayPause(boolean play);
+
+        void setGain(float gain);
+
+        /**
+         * Start playback on the sample heard at a {@link System#nanoTime()}. Called a few
+         * buffers ahead, the audio callback lands the start inside the right buffer.
+         * Stopping cancels a start that has not landed yet.
+         */
+        void scheduleStart(long frameTimeNanos);
+
+        /**
+         * Return the time the last scheduled start was heard at, 0 while it is pending.
+         */
+        long getStartTime();
+
+        /**
+         * Delay the output by a number of samples, crossfaded in place while playing.
+         * Fractions of a sample are interpolated, not rounded. Ends any trajectory.
+         */
+        void setDelaySamples(double samples);
+
+        /**
+         * Reach a delay in samples at a {@link System#nanoTime()}, gliding to it frame by
+         * frame from the previous keyframe. Keyframes come in time order, an earlier one
+         * starts a new trajectory.
+         */
+        void addKeyframe(long frameTimeNanos, double samples);
+
+        /**
+         * Set this speaker's amplitude weight in the array's taper, smoothed in the audio
+         * callback. Applied on top of the gain.
+         */
+        void setWeight(float weight);
+    }
+
+    private final HandlerThread mThread;
+    private final Handler mHandler;
+    private final Handler mUiHandler;
+    private final AudioOutput mAudio;
+    private final int mSampleRate;
+    private WiFiDirectService mService;
+
+    // Synchronization with the group owner
+    private final PeerClock mClock = new PeerClock();
+    private final PingSequencer mPingSequencer;
+
+    // The local timeline, execution times are hit by the scheduler, not by spinning here
+    private final DeadlineScheduler mScheduler = new DeadlineScheduler();
+    private DeadlineScheduler.Task mPendingStart;
+    private StartAction mStartAction;
+    private DeadlineScheduler.Task mPendingStop;
+    private DeadlineScheduler.Task mPendingGain;
+    private DeadlineScheduler.Task mPendingDelay;
+
+    // This peer's slot in STEER commands, -1 until the group owner assigned one
+    private int mSlot = -1;
+    private final Runnable mStop = new Runnable() {
+        @Override
+        public void run() {
+            mAudio.onPlayPause(false);
+        }
+    };
+
+    // Local time the last TCP read completed, the receive time of probes answered over TCP
+    private long mClientReceiveTime;
+
+    // Commands arrive by datagram and TCP, this puts them back in sequence
+    private final CommandWindow mCommands = new CommandWindow();
+    private int mRepairFirst;
+    private boolean mRepairPending;
+
+    // Reused for every frame decoded on the control thread
+    private final ArrayProtocol.Message mMessage = new ArrayProtocol.Message();
+    private final ByteBuffer mReadBuffer = ByteBuffer.allocate(ArrayProtocol.MAX_FRAME_SIZE);
+
+    /**
+     * Hands the start of one PLAY command to the audio callback and has it
+     * acknowledged once it played.
+     */
+    private class StartAction implements Runnable {
+        final int mCommand;
+        final long mStartAt;
+
+        StartAction(int command, long startAt) {
+            mCommand = command;
+            mStartAt = startAt;
+        }
+
+        @Override
+        public void run() {
+            mAudio.scheduleStart(mStartAt);
+            long wait = (mStartAt - System.nanoTime()) / 1000000 + START_ACK_DELAY_MS;
+            mHandler.sendMessageDelayed(mHandler.obtainMessage(MESSAGE_STARTED, this),
+                    Math.max(wait, START_ACK_DELAY_MS));
+        }
+    }
+
+    /**
+     * @param uiHandler  Handler on the main thread that receives UI state messages
+     * @param audio      Audio engine the commands drive
+     * @param sampleRate Output sample rate of the audio engine
+     */
+    public ArrayController(Handler uiHandler, AudioOutput audio, int sampleRate) {
+        mUiHandler = uiHandler;
+        mAudio = audio;
+        mSampleRate = sampleRate;
+
+        mThread = new HandlerThread("ArrayControl", Process.THREAD_PRIORITY_URGENT_AUDIO);
+        mThread.start();
+        mHandler = new Handler(mThread.getLooper(), new Handler.Callback() {
+            @Override
+            public boolean handleMessage(Message msg) {
+                return ArrayController.this.handleMessage(msg);
+            }
+        });
+
+        // Probes are sent from the sequencer's own thread. Replies come back on the sync
+        // channel's receive thread, or through this controller when probing falls back to TCP.
+        mPingSequencer = new PingSequencer(new PingSequencer.ProbeSender() {
+            @Override
+            public long sendProbe(int round, int seq) {
+                return mService.writeProbe(round, seq);
+            }
+        }, new PingSequencer.Listener() {
+            @Override
+            public void onRoundStart(int round) {
+                mClock.startRound();
+            }
+
+            @Override
+            public void onSample(long t1, long t2, long t3, long t4) {
+                mClock.addSample(t1, t2, t3, t4);
+            }
+
+            @Override
+            public void onRoundComplete(int round, int answered, int lost) {
+                long roundTrip;
+                long error;
+                synchronized (mClock) {
+                    if (!mClock.finishRound()) {
+                        Log.d(TAG, "Sync round " + round + ": no usable sample, " + lost
+                                + " lost");
+                        return;
+                    }
+                    roundTrip = mClock.getRoundTrip();
+                    error = mClock.getOffsetError();
+                    Log.d(TAG, "Sync round " + round + ": " + answered + " answered, " + lost
+                            + " lost, offset " + mClock.getOffset() + " +/- " + error
+                            + " ns, min round trip " + roundTrip + " ns, skew "
+                            + mClock.getSkew() * 1e6 + " ppm");
+                }
+                // The group owner sizes command lead times from these
+                mService.writeSyncReport(roundTrip, error);
+            }
+        });
+    }
+
+    /**
+     * Return the Handler the {@link WiFiDirectService} should post to.
+     */
+    public Handler getHandler() {
+        return mHandler;
+    }
+
+    /**
+     * Connect the controller to the service it sends probes through.
+     */
+    public void attach(WiFiDirectService service) {
+        mService = service;
+        service.setProbeListener(new SyncChannel.ReplyListener() {
+            @Override
+            public void onProbeReply(int round, int seq, long t2, long t3, long t4) {
+                mPingSequencer.onReply(round, seq, t2, t3, t4);
+            }
+        });
+    }
+
+    /**
+     * Stop probing and the control thread.
+     */
+    public void quit() {
+        mHandler.removeMessages(MESSAGE_SYNC_ROUND);
+        mPingSequencer.shutdown();
+        mScheduler.shutdown();
+        mThread.quit();
+    }
+
+    private boolean handleMessage(Message msg) {
+        switch (msg.what) {
+            case Constants.MESSAGE_READ:
+                // One whole frame per message in a pooled buffer this thread now owns
+                byte[] readBuf = (byte[]) msg.obj;
+                mReadBuffer.clear();
+                mReadBuffer.put(readBuf, 0, msg.arg1).flip();
+                mService.releaseBuffer(readBuf);
+                if (ArrayProtocol.decode(mReadBuffer, mMessage) != ArrayProtocol.DECODE_OK) {
+                    return true;
+                }
+                if (ArrayProtocol.isCommand(mMessage.type)) {
+                    if (mCommands.offer(mMessage)) {
+                        drainCommands();
+                    }
+                } else {
+                    handleCommand(mMessage);
+                }
+                return true;
+            case MESSAGE_STARTED: {
+                StartAction start = (StartAction) msg.obj;
+                long startedAt = mAudio.getStartTime();
+                if (start != mStartAction || startedAt == 0) {
+                    // Superseded or stopped before it landed, nothing to acknowledge
+                    return true;
+                }
+                long achieved = mClock.toRemoteTime(startedAt);
+                mService.writeStartAck(start.mCommand, achieved, startedAt - start.mStartAt);
+                return true;
+            }
+            case MESSAGE_REPAIR_TIMEOUT:
+                if (mRepairPending && mCommands.getMissingFirst() == mRepairFirst) {
+                    Log.w(TAG, "Commands " + mRepairFirst + " and on never arrived, skipping");
+                    mCommands.skipGap();
+                    mRepairPending = false;
+                    drainCommands();
+                }
+                return true;
+            case Constants.MESSAGE_STATE_CHANGE:
+                if (msg.arg1 == WiFiDirectService.STATE_CONNECTED) {
+                    // A new group owner numbers its commands afresh
+                    mCommands.reset();
+                    mRepairPending = false;
+                    mHandler.removeMessages(MESSAGE_REPAIR_TIMEOUT);
+                    // And runs its own clock
+                    mClock.reset();
+                    mHandler.removeMessages(MESSAGE_SYNC_ROUND);
+                    mHandler.sendEmptyMessage(MESSAGE_SYNC_ROUND);
+                } else {
+                    mHandler.removeMessages(MESSAGE_SYNC_ROUND);
+                }
+                republish(msg);
+                return true;
+            case MESSAGE_SYNC_ROUND:
+                mPingSequencer.startRound();
+                mHandler.sendEmptyMessageDelayed(MESSAGE_SYNC_ROUND, SYNC_INTERVAL_MS);
+                return true;
+            case Constants.TIMESTAMP:
+                if (msg.arg1 != 0) {
+                    mClientReceiveTime = (Long) msg.obj;
+                }
+                return true;
+            default:
+                // Everything else is UI state, publish it to the main thread
+                republish(msg);
+                return true;
+        }
+    }
+
+    private void republish(Message msg) {
+        Message ui = Message.obtain(mUiHandler, msg.what, msg.arg1, msg.arg2, msg.obj);
+        ui.setData(msg.peekData());
+        ui.sendToTarget();
+    }
+
+    /**
+     * Act on every command now in sequence, and ask for the missing ones when commands are
+     * held behind a gap.
+     */
+    private void drainCommands() {
+        ArrayProtocol.Message command;
+        while ((command = mCommands.poll()) != null) {
+            handleCommand(command);
+        }
+        if (!mCommands.hasGap()) {
+            mRepairPending = false;
+            mHandler.removeMessages(MESSAGE_REPAIR_TIMEOUT);
+        } else if (!mRepairPending || mCommands.getMissingFirst() != mRepairFirst) {
+            mRepairFirst = mCommands.getMissingFirst();
+            mRepairPending = true;
+            mService.writeNack(mRepairFirst, mCommands.getMissingCount());
+            mHandler.removeMessages(MESSAGE_REPAIR_TIMEOUT);
+            mHandler.sendEmptyMessageDelayed(MESSAGE_REPAIR_TIMEOUT, REPAIR_TIMEOUT_MS);
+        }
+    }
+
+    /**
+     * Convert an execution time on the group owner's clock to the local timeline.
+     */
+    private long toLocalTime(long masterTime) {
+        synchronized (mClock) {
+            if (!mClock.hasEstimate()) {
+                // Without a clock estimate the master time means nothing here, act now
+                Log.w(TAG, "Command before any synchronization, executing on arrival");
+                return System.nanoTime();
+            }
+            return mClock.toLocalTime(masterTime);
+        }
+    }
+
+    /**
+     * Put an action on the timeline in place of a pending one.
+     */
+    private DeadlineScheduler.Task replace(DeadlineScheduler.Task previous, long localTime,
+                                           Runnable action) {
+        if (previous != null && previous.hasFired()) {
+            Log.d(TAG, "Command fired " + previous.getError() + " ns off, " + mScheduler);
+        }
+        mScheduler.cancel(previous);
+        return mScheduler.schedule(localTime, action);
+    }
+
+    // A command supersedes a task of the opposite kind still pending past its own time
+    private void cancelAfter(DeadlineScheduler.Task task, long localTime) {
+        if (task != null && task.getDeadline() - localTime >= 0) {
+            mScheduler.cancel(task);
+        }
+    }
+
+    /**
+     * Put a start on the timeline in place of a pending one. It is handed to the audio
+     * callback {@link #START_HANDOFF_NANOS} ahead.
+     */
+    private void scheduleStart(int command, long startAt) {
+        mStartAction = new StartAction(command, startAt);
+        mPendingStart = replace(mPendingStart, startAt - START_HANDOFF_NANOS, mStartAction);
+    }
+
+    private void cancelStartAfter(long localTime) {
+        if (mStartAction != null && mStartAction.mStartAt - localTime >= 0) {
+            // Once handed off, the stop itself cancels the start in the audio callback
+            mScheduler.cancel(mPendingStart);
+        }
+    }
+
+    /**
+     * Put an output delay change on the timeline. It moves the output in stream, playback
+     * carries on through the change.
+     */
+    private void scheduleDelay(long masterTime, long delayNanos) {
+        final double samples = delayNanos * (double) mSampleRate / 1e9;
+        mPendingDelay = replace(mPendingDelay, toLocalTime(masterTime), new Runnable() {
+            @Override
+            public void run() {
+                mAudio.setDelaySamples(samples);
+            }
+        });
+    }
+
+    /**
+     * Put a change of output delay and amplitude weight on the timeline, both in stream.
+     */
+    private void scheduleSteer(long masterTime, long delayNanos, final float weight) {
+        final double samples = delayNanos * (double) mSampleRate / 1e9;
+        mPendingDelay = replace(mPendingDelay, toLocalTime(masterTime), new Runnable() {
+            @Override
+            public void run() {
+                mAudio.setDelaySamples(samples);
+                mAudio.setWeight(weight);
+            }
+        });
+    }
+
+    /**
+     * Act on one command frame from the group owner.
+     */
+    private void handleCommand(ArrayProtocol.Message command) {
+        switch (command.type) {
+            case ArrayProtocol.TYPE_SYNCH:
+                mPingSequencer.startRound();
+                break;
+            case ArrayProtocol.TYPE_PROBE_REPLY:
+                // Probe answered over TCP, the datagram path reports straight to the sequencer
+                mPingSequencer.onReply(command.round, command.probe, command.receiveTime,
+                        command.sendTime, mClientReceiveTime);
+                break;
+            case ArrayProtocol.TYPE_PLAY: {
+                long playAt = toLocalTime(command.time);
+                cancelAfter(mPendingStop, playAt);
+                scheduleStart(command.seq, playAt);
+                break;
+            }
+            case ArrayProtocol.TYPE_PHASE:
+                scheduleDelay(command.time, command.delay);
+                break;
+            case ArrayProtocol.TYPE_ASSIGN:
+                Log.d(TAG, "Assigned speaker slot " + command.slot);
+                mSlot = command.slot;
+                break;
+            case ArrayProtocol.TYPE_STEER:
+                if (mSlot < 0 || mSlot >= ArrayProtocol.STEER_SLOTS) {
+                    Log.w(TAG, "Steering command without a speaker slot, ignored");
+                    break;
+                }
+                scheduleSteer(command.time, command.delays[mSlot], command.weights[mSlot]);
+                break;
+            case ArrayProtocol.TYPE_KEYFRAME: {
+                if (mSlot < 0 || mSlot >= ArrayProtocol.STEER_SLOTS) {
+                    Log.w(TAG, "Trajectory without a speaker slot, ignored");
+                    break;
+                }
+                // The audio callback times keyframes itself, they are handed over right away
+                // from the scheduler thread, the only one that drives the audio engine. The
+                // trajectory needs them in order: arrival order, as equal deadlines fire first
+                // come first served
+                final long reachAt = toLocalTime(command.time);
+                final double samples = command.delays[mSlot] * (double) mSampleRate / 1e9;
+                mScheduler.schedule(System.nanoTime(), new Runnable() {
+                    @Override
+                    public void run() {
+                        mAudio.addKeyframe(reachAt, samples);
+                    }
+                });
+                break;
+            }
+            case ArrayProtocol.TYPE_STOP: {
+                long stopAt = toLocalTime(command.time);
+                cancelStartAfter(stopAt);
+                mPendingStop = replace(mPendingStop, stopAt, mStop);
+                break;
+            }
+            case ArrayProtocol.TYPE_GAIN: {
+                final float gain = command.gain;
+                mPendingGain = replace(mPendingGain, toLocalTime(command.time), new Runnable() {
+                    @Override
+                    public void run() {
+                        mAudio.setGain(gain);
+                    }
+                });
+                break;
+            }
+        }
+    }
+
+}
@@ -0,0 +1,404 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.phasedarray;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Binary wire format shared by every array command, over TCP and over datagrams.
+ * <p>
+ * A frame is a 2 byte length followed by the body: a version byte, a type byte, a 4 byte
+ * sequence number and a payload whose size is fixed by the type. The length counts the body
+ * only. All fields are big endian.
+ * <p>
+ * Encoding and decoding work directly on {@link ByteBuffer}s and a reusable {@link Message},
+ * nothing is allocated per frame.
+ */
+public final class ArrayProtocol {
+
+    // Bumped whenever an existing type's payload changes, so a mismatched pair reports
+    // DECODE_BAD_VERSION instead of framing errors. 2: STOP, PLAY and PHASE carry an
+    // execution time, STEER carries per slot delays and weights, types 7 to 13.
+    public static final byte VERSION = 2;
+
+    // Message types
+    public static final byte TYPE_SYNCH = 1;
+    public static final byte TYPE_STOP = 2;
+    public static final byte TYPE_PLAY = 3;
+    public static final byte TYPE_PHASE = 4;
+    public static final byte TYPE_PROBE = 5;
+    public static final byte TYPE_PROBE_REPLY = 6;
+    public static final byte TYPE_NACK = 7;
+    public static final byte TYPE_GAIN = 8;
+    public static final byte TYPE_SYNC_REPORT = 9;
+    public static final byte TYPE_START_ACK = 10;
+    public static final byte TYPE_ASSIGN = 11;
+    public static final byte TYPE_STEER = 12;
+    public static final byte TYPE_KEYFRAME = 13;
+
+    // Speaker slots a STEER carries a delay and weight for
+    public static final int STEER_SLOTS = 12;
+
+    // Payload size of each type, indexed by type
+    private static final int[] PAYLOAD_SIZES = {
+            -1,     // unused
+            0,      // SYNCH
+            8,      // STOP: execution time
+            8,      // PLAY: execution time
+            16,     // PHASE: execution time, output delay
+            8,      // PROBE: round, seq
+            24,     // PROBE_REPLY: round, seq, receive time, send time
+            8,      // NACK: first missing seq, count
+            12,     // GAIN: execution time, gain
+            16,     // SYNC_REPORT: round trip, offset error
+            20,     // START_ACK: command seq, achieved time, scheduler error
+            4,      // ASSIGN: speaker slot
+            8 + 8 * STEER_SLOTS,    // STEER: execution time, output delay and weight per slot
+            8 + 4 * STEER_SLOTS,    // KEYFRAME: time reached, output delay per slot
+    };
+
+    public static final int LENGTH_SIZE = 2;
+    public static final int HEADER_SIZE = LENGTH_SIZE + 6;
+    public static final int MAX_FRAME_SIZE = 128;
+
+    // Decode results
+    public static final int DECODE_OK = 0;
+    public static final int DECODE_NEED_MORE = 1;
+    public static final int DECODE_BAD_LENGTH = 2;
+    public static final int DECODE_BAD_VERSION = 3;
+    public static final int DECODE_BAD_TYPE = 4;
+
+    /**
+     * Reusable holder for one decoded frame. Only the fields of the decoded type are valid.
+     */
+    public static final class Message {
+        public byte type;
+        public int seq;
+
+        // Execution time of STOP, PLAY, PHASE, GAIN and STEER, or time a KEYFRAME is reached,
+        // in the group owner's timebase
+        public long time;
+
+        // PHASE output delay, in nanoseconds
+        public long delay;
+
+        // STEER and KEYFRAME output delay of every speaker slot, in nanoseconds
+        public final int[] delays = new int[STEER_SLOTS];
+
+        // STEER amplitude weight of every speaker slot
+        public final float[] weights = new float[STEER_SLOTS];
+
+        // ASSIGN slot of the receiving peer in STEER
+        public int slot;
+
+        // GAIN linear gain
+        public float gain;
+
+        // SYNC_REPORT minimum round trip and offset error of a peer, in nanoseconds
+        public long roundTrip;
+        public long error;
+
+        // START_ACK command acknowledged, its achieved time is in time and the scheduler
+        // error in error
+        public int command;
+
+        // PROBE and PROBE_REPLY ids
+        public int round;
+        public int probe;
+
+        // PROBE_REPLY responder timestamps
+        public long receiveTime;
+        public long sendTime;
+
+        // NACK range of missing command sequence numbers
+        public int first;
+        public int count;
+    }
+
+    private ArrayProtocol() {
+    }
+
+    /**
+     * Return the full frame size, length field included, of a message type.
+     */
+    public static int frameSize(byte type) {
+        return HEADER_SIZE + PAYLOAD_SIZES[type];
+    }
+
+    private static void putHeader(ByteBuffer out, byte type, int seq) {
+        out.putShort((short) (frameSize(type) - LENGTH_SIZE));
+        out.put(VERSION);
+        out.put(type);
+        out.putInt(seq);
+    }
+
+    public static void encodeSynch(ByteBuffer out, int seq) {
+        putHeader(out, TYPE_SYNCH, seq);
+    }
+
+    /**
+     * Execution times of STOP, PLAY, PHASE, GAIN and STEER are in the group owner's
+     * {@link System#nanoTime()} timebase.
+     */
+    public static void encodeStop(ByteBuffer out, int seq, long time) {
+        putHeader(out, TYPE_STOP, seq);
+        out.putLong(time);
+    }
+
+    public static void encodePlay(ByteBuffer out, int seq, long time) {
+        putHeader(out, TYPE_PLAY, seq);
+        out.putLong(time);
+    }
+
+    /**
+     * Delay the output by delay nanoseconds from the execution time on, without interrupting
+     * playback.
+     */
+    public static void encodePhase(ByteBuffer out, int seq, long time, long delay) {
+        putHeader(out, TYPE_PHASE, seq);
+        out.putLong(time);
+        out.putLong(delay);
+    }
+
+    public static void encodeGain(ByteBuffer out, int seq, long time, float gain) {
+        putHeader(out, TYPE_GAIN, seq);
+        out.putLong(time);
+        out.putFloat(gain);
+    }
+
+    /**
+     * Set a different output delay and amplitude weight on every speaker, each peer applies
+     * the ones of its slot.
+     *
+     * @param delays  Delays in nanoseconds, slots past count get none
+     * @param weights Linear weights, slots past count get 1
+     */
+    public static void encodeSteer(ByteBuffer out, int seq, long time, int[] delays,
+                                   float[] weights, int count) {
+        putHeader(out, TYPE_STEER, seq);
+        putDelays(out, time, delays, count);
+        for (int i = 0; i < STEER_SLOTS; i++) {
+            out.putFloat(i < count ? weights[i] : 1);
+        }
+    }
+
+    /**
+     * Add a point to every speaker's delay trajectory. Each peer moves its delay linearly
+     * from the previous keyframe to reach this one's at the given time, frame by frame.
+     *
+     * @param delays Delays in nanoseconds, slots past count get none
+     */
+    public static void encodeKeyframe(ByteBuffer out, int seq, long time, int[] delays,
+                                      int count) {
+        putHeader(out, TYPE_KEYFRAME, seq);
+        putDelays(out, time, delays, count);
+    }
+
+    private static void putDelays(ByteBuffer out, long time, int[] delays, int count) {
+        out.putLong(time);
+        for (int i = 0; i < STEER_SLOTS; i++) {
+            out.putInt(i < count ? delays[i] : 0);
+        }
+    }
+
+    /**
+     * Tell a peer which slot of {@link #TYPE_STEER} commands is its own.
+     */
+    public static void encodeAssign(ByteBuffer out, int seq, int slot) {
+        putHeader(out, TYPE_ASSIGN, seq);
+        out.putInt(slot);
+    }
+
+    /**
+     * Tell the group owner how well a peer is synchronized, so it can pick command lead times.
+     */
+    public static void encodeSyncReport(ByteBuffer out, int seq, long roundTrip, long error) {
+        putHeader(out, TYPE_SYNC_REPORT, seq);
+        out.putLong(roundTrip);
+        out.putLong(error);
+    }
+
+    public static void encodeProbe(ByteBuffer out, int seq, int round, int probe) {
+        putHeader(out, TYPE_PROBE, seq);
+        out.putInt(round);
+        out.putInt(probe);
+    }
+
+    /**
+     * Acknowledge a PLAY start.
+     *
+     * @param achievedTime   When playback started, on the group owner's clock
+     * @param schedulerError Achieved minus requested start, on the peer's clock
+     */
+    public static void encodeStartAck(ByteBuffer out, int seq, int command, long achievedTime,
+                                      long schedulerError) {
+        putHeader(out, TYPE_START_ACK, seq);
+        out.putInt(command);
+        out.putLong(achievedTime);
+        out.putLong(schedulerError);
+    }
+
+    /**
+     * Ask the group owner to resend the commands numbered first to first + count - 1.
+     */
+    public static void encodeNack(ByteBuffer out, int seq, int first, int count) {
+        putHeader(out, TYPE_NACK, seq);
+        out.putInt(first);
+        out.putInt(count);
+    }
+
+    /**
+     * Return whether a type is a command the group owner numbers from its single sequence
+     * and sends to every peer, as opposed to probe traffic.
+     */
+    public static boolean isCommand(byte type) {
+        return type == TYPE_SYNCH || type == TYPE_STOP || type == TYPE_PLAY
+                || type == TYPE_PHASE || type == TYPE_GAIN || type == TYPE_STEER
+                || type == TYPE_KEYFRAME;
+    }
+
+    /**
+     * Write a probe reply whose send time is patched in later with
+     * {@link #patchSendTime(ByteBuffer, int, long)}, right before the frame is written out.
+     *
+     * @return the absolute position of the send time field
+     */
+    public static int encodeProbeReply(ByteBuffer out, int seq, int round, int probe,
+                                       long receiveTime) {
+        putHeader(out, TYPE_PROBE_REPLY, seq);
+        out.putInt(round);
+        out.putInt(probe);
+        out.putLong(receiveTime);
+        int sendTimePosition = out.position();
+        out.putLong(0);
+        return sendTimePosition;
+    }
+
+    public static void patchSendTime(ByteBuffer out, int position, long sendTime) {
+        out.putLong(position, sendTime);
+    }
+
+    /**
+     * Check whether a complete, well formed frame starts at the buffer's position, without
+     * moving it.
+     *
+     * @return {@link #DECODE_OK}, {@link #DECODE_NEED_MORE} or one of the error codes
+     */
+    public static int check(ByteBuffer in) {
+        int start = in.position();
+        if (in.remaining() < LENGTH_SIZE) {
+            return DECODE_NEED_MORE;
+        }
+        int length = in.getShort(start) & 0xffff;
+        if (length < HEADER_SIZE - LENGTH_SIZE || length > MAX_FRAME_SIZE - LENGTH_SIZE) {
+            return DECODE_BAD_LENGTH;
+        }
+        if (in.remaining() < LENGTH_SIZE + length) {
+            return DECODE_NEED_MORE;
+        }
+        if (in.get(start + 2) != VERSION) {
+            return DECODE_BAD_VERSION;
+        }
+        byte type = in.get(start + 3);
+        if (type <= 0 || type >= PAYLOAD_SIZES.length) {
+            return DECODE_BAD_TYPE;
+        }
+        if (length != frameSize(type) - LENGTH_SIZE) {
+            return DECODE_BAD_LENGTH;
+        }
+        return DECODE_OK;
+    }
+
+    /**
+     * Decode the frame at the buffer's position. On {@link #DECODE_OK} the position is moved
+     * past the frame; on {@link #DECODE_NEED_MORE} it is left untouched so the caller can wait
+     * for more bytes. On errors the position is left on the bad frame.
+     */
+    public static int decode(ByteBuffer in, Message msg) {
+        int result = check(in);
+        if (result != DECODE_OK) {
+            return result;
+        }
+
+        int start = in.position();
+        int length = in.getShort(start) & 0xffff;
+        byte type = in.get(start + 3);
+        msg.type = type;
+        msg.seq = in.getInt(start + 4);
+        int payload = start + HEADER_SIZE;
+        switch (type) {
+            case TYPE_STOP:
+            case TYPE_PLAY:
+                msg.time = in.getLong(payload);
+                break;
+            case TYPE_PHASE:
+                msg.time = in.getLong(payload);
+                msg.delay = in.getLong(payload + 8);
+                break;
+            case TYPE_GAIN:
+                msg.time = in.getLong(payload);
+                msg.gain = in.getFloat(payload + 8);
+                break;
+            case TYPE_STEER:
+                getDelays(in, payload, msg);
+                for (int i = 0; i < STEER_SLOTS; i++) {
+                    msg.weights[i] = in.getFloat(payload + 8 + 4 * STEER_SLOTS + 4 * i);
+                }
+                break;
+            case TYPE_KEYFRAME:
+                getDelays(in, payload, msg);
+                break;
+            case TYPE_ASSIGN:
+                msg.slot = in.getInt(payload);
+                break;
+            case TYPE_SYNC_REPORT:
+                msg.roundTrip = in.getLong(payload);
+                msg.error = in.getLong(payload + 8);
+                break;
+            case TYPE_START_ACK:
+                msg.command = in.getInt(payload);
+                msg.time = in.getLong(payload + 4);
+                msg.error = in.getLong(payload + 12);
+                break;
+            case TYPE_PROBE:
+                msg.round = in.getInt(payload);
+                msg.probe = in.getInt(payload + 4);
+                break;
+            case TYPE_PROBE_REPLY:
+                msg.round = in.getInt(payload);
+                msg.probe = in.getInt(payload + 4);
+                msg.receiveTime = in.getLong(payload + 8);
+                msg.sendTime = in.getLong(payload + 16);
+                break;
+            case TYPE_NACK:
+                msg.first = in.getInt(payload);
+                msg.count = in.getInt(payload + 4);
+                break;
+        }
+        in.position(start + LENGTH_SIZE + length);
+        return DECODE_OK;
+    }
+
+    // Read the time and per slot delays STEER and KEYFRAME payloads start with
+    private static void getDelays(ByteBuffer in, int payload, Message msg) {
+        msg.time = in.getLong(payload);
+        for (int i = 0; i < STEER_SLOTS; i++) {
+            msg.delays[i] = in.getInt(payload + 8 + 4 * i);
+        }
+    }
+
+}
@@ -0,0 +1,456 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.phasedarray;
+
+import com.example.android.common.logger.Log;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The group owner's command server. One selector thread accepts, reads and writes for every
+ * peer, so each new speaker costs a {@link Peer} object rather than a thread, and nothing
+ * ever blocks the callers.
+ * <p>
+ * {@link #broadcast(byte[], int, int)} copies a frame once and puts a read-only view of it
+ * on every peer's bounded queue. The selector thread then drains all queues with
+ * non-blocking writes, so a slow peer only delays itself. What happens when a queue is full
+ * is set with {@link #setOverflowPolicy(int)}.
+ * <p>
+ * Probes arriving over TCP are answered on the selector thread. Any other frame from a peer
+ * goes to the {@link Listener}.
+ */
+public class ArrayServer {
+    private static final String TAG = "ArrayServer";
+
+    // Frames a peer may have queued before the overflow policy applies
+    public static final int QUEUE_CAPACITY = 64;
+
+    // Overflow policies
+    public static final int POLICY_DISCONNECT = 0;  // a peer that far behind is dropped
+    public static final int POLICY_DROP_OLDEST = 1; // the oldest unsent frame makes room
+    public static final int POLICY_DROP_NEWEST = 2; // the new frame is not queued
+
+    /**
+     * Receives peer events on the selector thread.
+     */
+    public interface Listener {
+        void onPeerConnected(Peer peer);
+
+        void onPeerDisconnected(Peer peer);
+
+        /**
+         * A frame other than a probe arrived. The message is only valid during the call.
+         */
+        void onPeerFrame(Peer peer, ArrayProtocol.Message message);
+    }
+
+    /**
+     * State of one connected peer.
+     */
+    public final class Peer implements FrameReader.FrameListener {
+        private final SocketChannel mChannel;
+        private final SelectionKey mKey;
+        private final int mId;
+        private final String mAddress;
+        private final FrameReader mReader = new FrameReader();
+        private final ArrayProtocol.Message mMessage = new ArrayProtocol.Message();
+
+        // Frames not yet started, and the one being written, owned by the selector thread
+        private final ArrayBlockingQueue<ByteBuffer> mQueue =
+                new ArrayBlockingQueue<>(QUEUE_CAPACITY);
+        private ByteBuffer mCurrent;
+        private final ByteBuffer mReply = ByteBuffer.allocate(ArrayProtocol.MAX_FRAME_SIZE);
+
+        private volatile boolean mBroken;
+        private long mReceiveTime;
+
+        // Queue metrics, updated by every thread that queues frames
+        private final AtomicInteger mMaxQueueDepth = new AtomicInteger();
+        private final AtomicLong mDropped = new AtomicLong();
+
+        // Last synchronization quality the peer reported, -1 until it reported
+        private volatile long mRoundTrip = -1;
+        private volatile long mSyncError = -1;
+
+        // Speaker slot in steering commands, -1 while unassigned
+        private volatile int mSlot = -1;
+
+        private Peer(SocketChannel channel, SelectionKey key, int id) {
+            mChannel = channel;
+            mKey = key;
+            mId = id;
+            mAddress = String.valueOf(channel.socket().getInetAddress());
+        }
+
+        /**
+         * Return the id the server gave this peer, unique for the server's lifetime.
+         */
+        public int getId() {
+            return mId;
+        }
+
+        public String getAddress() {
+            return mAddress;
+        }
+
+        /**
+         * Record the synchronization quality from a {@link ArrayProtocol#TYPE_SYNC_REPORT}.
+         */
+        public void setSyncReport(long roundTrip, long error) {
+            mSyncError = error;
+            mRoundTrip = roundTrip;
+        }
+
+        public int getSlot() {
+            return mSlot;
+        }
+
+        public void setSlot(int slot) {
+            mSlot = slot;
+        }
+
+        public boolean hasSyncReport() {
+            return mRoundTrip >= 0;
+        }
+
+        /**
+         * Return the peer's minimum probe round trip, or -1 before it reported.
+         */
+        public long getRoundTrip() {
+            return mRoundTrip;
+        }
+
+        /**
+         * Return the uncertainty of the peer's clock offset, or -1 before it reported.
+         */
+        public long getSyncError() {
+            return mSyncError;
+        }
+
+        /**
+         * Return the number of frames waiting for the socket.
+         */
+        public int getQueueDepth() {
+            return mQueue.size();
+        }
+
+        public int getMaxQueueDepth() {
+            return mMaxQueueDepth.get();
+        }
+
+        /**
+         * Return the number of frames lost to the overflow policy.
+         */
+        public long getDropped() {
+            return mDropped.get();
+        }
+
+        // Queue a frame from any thread, applying the overflow policy when full
+        private boolean offer(ByteBuffer frame) {
+            if (mBroken) {
+                return false;
+            }
+            boolean queued = mQueue.offer(frame);
+            if (!queued) {
+                switch (mOverflowPolicy) {
+                    case POLICY_DROP_OLDEST:
+                        mQueue.poll();
+                        mDropped.incrementAndGet();
+                        queued = mQueue.offer(frame);
+                        break;
+                    case POLICY_DROP_NEWEST:
+                        mDropped.incrementAndGet();
+                        break;
+                    default:
+                        Log.e(TAG, "Peer " + mId + " is not reading, dropping it");
+                        mBroken = true;
+                        break;
+                }
+            }
+            int depth = mQueue.size();
+            int max = mMaxQueueDepth.get();
+            while (depth > max && !mMaxQueueDepth.compareAndSet(max, depth)) {
+                max = mMaxQueueDepth.get();
+            }
+            return queued;
+        }
+
+        private boolean hasPendingOutput() {
+            return mCurrent != null || !mQueue.isEmpty();
+        }
+
+        // Write queued frames until the socket is full, on the selector thread
+        private void flush() {
+            try {
+                while (true) {
+                    if (mCurrent == null) {
+                        mCurrent = mQueue.poll();
+                        if (mCurrent == null) {
+                            return;
+                        }
+                    }
+                    mChannel.write(mCurrent);
+                    if (mCurrent.hasRemaining()) {
+                        return;
+                    }
+                    mCurrent = null;
+                }
+            } catch (IOException e) {
+                Log.e(TAG, "Exception during write", e);
+                mBroken = true;
+            }
+        }
+
+        @Override
+        public void onFrame(ByteBuffer frame) {
+            if (ArrayProtocol.decode(frame, mMessage) != ArrayProtocol.DECODE_OK) {
+                return;
+            }
+            if (mMessage.type != ArrayProtocol.TYPE_PROBE) {
+                mListener.onPeerFrame(this, mMessage);
+                return;
+            }
+
+            // A reply stuck behind queued frames would only report a long round trip
+            if (mBroken || hasPendingOutput()) {
+                return;
+            }
+            ByteBuffer reply = mReply;
+            reply.clear();
+            int sendTime = ArrayProtocol.encodeProbeReply(reply, mMessage.seq, mMessage.round,
+                    mMessage.probe, mReceiveTime);
+            ArrayProtocol.patchSendTime(reply, sendTime, System.nanoTime());
+            reply.flip();
+            mCurrent = reply;
+            flush();
+        }
+    }
+
+    private final Selector mSelector;
+    private final ServerSocketChannel mServerChannel;
+    private final Listener mListener;
+    private final List<Peer> mPeers = new CopyOnWriteArrayList<>();
+    private final Thread mThread;
+    private volatile boolean mRunning = true;
+    private volatile int mOverflowPolicy = POLICY_DISCONNECT;
+    private int mNextId;
+
+    /**
+     * Bind the server socket and start the selector thread.
+     */
+    public ArrayServer(int port, Listener listener) throws IOException {
+        mListener = listener;
+        mSelector = Selector.open();
+        mServerChannel = ServerSocketChannel.open();
+        mServerChannel.socket().setReuseAddress(true);
+        mServerChannel.socket().bind(new InetSocketAddress(port));
+        mServerChannel.configureBlocking(false);
+        mServerChannel.register(mSelector, SelectionKey.OP_ACCEPT);
+
+        mThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                loop();
+            }
+        }, "ArrayServer");
+        mThread.setPriority(Thread.MAX_PRIORITY);
+        mThread.start();
+    }
+
+    /**
+     * Queue the same frame for every connected peer without waiting for any socket.
+     *
+     * @return the number of peers the frame was queued for, fewer than
+     * {@link #getPeerCount()} when queues overflowed
+     */
+    public int broadcast(byte[] buffer, int offset, int length) {
+        ByteBuffer frame = ByteBuffer.allocate(length);
+        frame.put(buffer, offset, length).flip();
+        ByteBuffer shared = frame.asReadOnlyBuffer();
+
+        int queued = 0;
+        for (Peer peer : mPeers) {
+            // Every peer gets its own position over the same bytes
+            if (peer.offer(shared.duplicate())) {
+                queued++;
+            }
+        }
+        mSelector.wakeup();
+        return queued;
+    }
+
+    /**
+     * Queue a frame for a single peer.
+     *
+     * @return false if the peer's queue overflowed
+     */
+    public boolean send(Peer peer, byte[] buffer, int offset, int length) {
+        ByteBuffer frame = ByteBuffer.allocate(length);
+        frame.put(buffer, offset, length).flip();
+        boolean queued = peer.offer(frame);
+        mSelector.wakeup();
+        return queued;
+    }
+
+    /**
+     * Set what happens when a peer's queue is full, one of {@link #POLICY_DISCONNECT},
+     * {@link #POLICY_DROP_OLDEST} or {@link #POLICY_DROP_NEWEST}.
+     */
+    public void setOverflowPolicy(int policy) {
+        mOverflowPolicy = policy;
+    }
+
+    public int getOverflowPolicy() {
+        return mOverflowPolicy;
+    }
+
+    public int getPeerCount() {
+        return mPeers.size();
+    }
+
+    /**
+     * Return the connected peers. The list is a snapshot-safe view that may be iterated
+     * from any thread.
+     */
+    public List<Peer> getPeers() {
+        return mPeers;
+    }
+
+    /**
+     * Disconnect every peer and stop the selector thread.
+     */
+    public void close() {
+        mRunning = false;
+        mSelector.wakeup();
+    }
+
+    private void loop() {
+        Log.i(TAG, "BEGIN mArrayServer");
+        try {
+            while (mRunning) {
+                mSelector.select();
+                Iterator<SelectionKey> keys = mSelector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    if (!key.isValid()) {
+                        continue;
+                    }
+                    if (key.isAcceptable()) {
+                        accept();
+                        continue;
+                    }
+                    Peer peer = (Peer) key.attachment();
+                    if (key.isReadable()) {
+                        read(peer);
+                    }
+                    if (key.isValid() && key.isWritable()) {
+                        peer.flush();
+                    }
+                }
+
+                // Drain what broadcasts queued, every peer in one pass. Only this thread
+                // writes and touches interest sets, other threads just wake it up.
+                for (Peer peer : mPeers) {
+                    if (!peer.mBroken && peer.hasPendingOutput()) {
+                        peer.flush();
+                    }
+                    if (peer.mBroken) {
+                        disconnect(peer);
+                    } else {
+                        int ops = SelectionKey.OP_READ;
+                        if (peer.hasPendingOutput()) {
+                            ops |= SelectionKey.OP_WRITE;
+                        }
+                        peer.mKey.interestOps(ops);
+                    }
+                }
+            }
+        } catch (IOException | ClosedSelectorException e) {
+            Log.e(TAG, "Selector failed", e);
+        }
+
+        for (Peer peer : mPeers) {
+            disconnect(peer);
+        }
+        try {
+            mServerChannel.close();
+            mSelector.close();
+        } catch (IOException e) {
+            Log.e(TAG, "close() of server failed", e);
+        }
+    }
+
+    private void accept() throws IOException {
+        SocketChannel channel = mServerChannel.accept();
+        if (channel == null) {
+            return;
+        }
+        channel.configureBlocking(false);
+        channel.socket().setTcpNoDelay(true);
+        SelectionKey key = channel.register(mSelector, SelectionKey.OP_READ);
+        Peer peer = new Peer(channel, key, mNextId++);
+        key.attach(peer);
+        mPeers.add(peer);
+        Log.d(TAG, "Peer " + peer.mId + " connected from " + peer.mAddress);
+        mListener.onPeerConnected(peer);
+    }
+
+    private void read(Peer peer) {
+        try {
+            if (peer.mReader.fill(peer.mChannel) < 0) {
+                peer.mBroken = true;
+                return;
+            }
+            peer.mReceiveTime = System.nanoTime();
+            peer.mReader.drain(peer);
+        } catch (IOException e) {
+            Log.e(TAG, "disconnected", e);
+            peer.mBroken = true;
+        }
+    }
+
+    private void disconnect(Peer peer) {
+        if (!mPeers.remove(peer)) {
+            return;
+        }
+        peer.mBroken = true;
+        peer.mKey.cancel();
+        try {
+            peer.mChannel.close();
+        } catch (IOException e) {
+            Log.e(TAG, "close() of peer failed", e);
+        }
+        Log.d(TAG, "Peer " + peer.mId + " disconnected, " + peer.mReader + ", queue depth at most "
+                + peer.mMaxQueueDepth.get() + ", " + peer.mDropped.get() + " frames dropped");
+        mListener.onPeerDisconnected(peer);
+    }
+
+}
@@ -0,0 +1,162 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.phasedarray;
+
+/**
+ * Computes the delay of every speaker in the array for a steering direction.
+ * <p>
+ * Each speaker slot has a position in meters. A speaker at p is p&middot;u / c closer than
+ * the origin to a far listener in direction u, so delaying each speaker by its own p&middot;u
+ * / c minus the smallest of those makes every wavefront arrive there together. Delays are
+ * never negative and the trailing speaker gets none.
+ * <p>
+ * Directions are an azimuth from the x axis in the x-y plane and an elevation above it, both
+ * in degrees. Slots start out on the x axis, {@link #DEFAULT_SPACING} apart, all occupied.
+ * Unoccupied slots are left out: they get no delay and do not trail the others.
+ * <p>
+ * For listeners close to the array {@link #focus(double, double, double, double[], int)}
+ * uses the exact path from each speaker to a point instead of a plane wave.
+ */
+public class Beamformer {
+
+    // Speed of sound in air at 20 degrees C, in meters per second
+    public static final double DEFAULT_SPEED_OF_SOUND = 343.0;
+
+    // Spacing of the default line layout, in meters
+    public static final double DEFAULT_SPACING = 0.5;
+
+    private final double[] mX;
+    private final double[] mY;
+    private final double[] mZ;
+    private final boolean[] mOccupied;
+    private double mSpeedOfSound = DEFAULT_SPEED_OF_SOUND;
+
+    // Bumped on every change delays depend on, so tables built from them can tell
+    private int mVersion;
+
+    /**
+     * @param slots Number of speaker slots
+     */
+    public Beamformer(int slots) {
+        mX = new double[slots];
+        mY = new double[slots];
+        mZ = new double[slots];
+        mOccupied = new boolean[slots];
+        for (int i = 0; i < slots; i++) {
+            mX[i] = i * DEFAULT_SPACING;
+            mOccupied[i] = true;
+        }
+    }
+
+    public int getSlots() {
+        return mX.length;
+    }
+
+    /**
+     * Place a speaker, in meters.
+     */
+    public synchronized void setPosition(int slot, double x, double y, double z) {
+        mX[slot] = x;
+        mY[slot] = y;
+        mZ[slot] = z;
+        mVersion++;
+    }
+
+    /**
+     * Mark whether a speaker is in a slot.
+     */
+    public synchronized void setOccupied(int slot, boolean occupied) {
+        if (mOccupied[slot] != occupied) {
+            mOccupied[slot] = occupied;
+            mVersion++;
+        }
+    }
+
+    public synchronized boolean isOccupied(int slot) {
+        return mOccupied[slot];
+    }
+
+    public synchronized void setSpeedOfSound(double metersPerSecond) {
+        if (metersPerSecond <= 0) {
+            throw new IllegalArgumentException("Speed of sound must be positive");
+        }
+        mSpeedOfSound = metersPerSecond;
+        mVersion++;
+    }
+
+    /**
+     * Return a number that changes whenever positions or the speed of sound do.
+     */
+    public synchronized int getVersion() {
+        return mVersion;
+    }
+
+    public synchronized double getX(int slot) {
+        return mX[slot];
+    }
+
+    /**
+     * Compute every slot's delay for a direction into an array, in seconds.
+     *
+     * @param azimuth   Degrees from the x axis towards the y axis
+     * @param elevation Degrees above the x-y plane
+     * @param out       Receives {@link #getSlots()} delays
+     * @param offset    Index of the first slot's delay in out
+     */
+    public synchronized void steer(double azimuth, double elevation, double[] out, int offset) {
+        double a = Math.toRadians(azimuth);
+        double e = Math.toRadians(elevation);
+        double ux = Math.cos(e) * Math.cos(a);
+        double uy = Math.cos(e) * Math.sin(a);
+        double uz = Math.sin(e);
+
+        double trail = Double.POSITIVE_INFINITY;
+        for (int i = 0; i < mX.length; i++) {
+            if (mOccupied[i]) {
+                out[offset + i] = mX[i] * ux + mY[i] * uy + mZ[i] * uz;
+                trail = Math.min(trail, out[offset + i]);
+            }
+        }
+        for (int i = 0; i < mX.length; i++) {
+            out[offset + i] = mOccupied[i] ? (out[offset + i] - trail) / mSpeedOfSound : 0;
+        }
+    }
+
+    /**
+     * Compute every slot's delay to focus on a point into an array, in seconds. Sound from
+     * every occupied speaker arrives at the point together, the farthest one gets no delay.
+     *
+     * @param out    Receives {@link #getSlots()} delays
+     * @param offset Index of the first slot's delay in out
+     */
+    public synchronized void focus(double x, double y, double z, double[] out, int offset) {
+        double farthest = 0;
+        for (int i = 0; i < mX.length; i++) {
+            if (mOccupied[i]) {
+                double dx = x - mX[i];
+                double dy = y - mY[i];
+                double dz = z - mZ[i];
+                out[offset + i] = Math.sqrt(dx * dx + dy * dy + dz * dz);
+                farthest = Math.max(farthest, out[offset + i]);
+            }
+        }
+        for (int i = 0; i < mX.length; i++) {
+            out[offset + i] = mOccupied[i] ? (farthest - out[offset + i]) / mSpeedOfSound : 0;
+        }
+    }
+
+}
@@ -0,0 +1,86 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.phasedarray;
+
+import java.util.concurrent.ArrayBlockingQueue;
+
+/**
+ * Bounded pool of equally sized byte arrays used to pass message bytes between threads.
+ * <p>
+ * A producer takes a buffer with {@link #acquire()}, fills it and hands it to a consumer
+ * together with ownership. The consumer must not keep the buffer after calling
+ * {@link #release(byte[])}. When every buffer is out, {@link #acquire()} blocks until one
+ * comes back, which pushes back on the socket instead of allocating.
+ */
+public class BufferPool {
+
+    private final ArrayBlockingQueue<byte[]> mFree;
+    private final int mBufferSize;
+    private volatile long mWaits;
+
+    /**
+     * @param buffers    Number of buffers in the pool
+     * @param bufferSize Size of each buffer, in bytes
+     */
+    public BufferPool(int buffers, int bufferSize) {
+        mFree = new ArrayBlockingQueue<>(buffers);
+        mBufferSize = bufferSize;
+        for (int i = 0; i < buffers; i++) {
+            mFree.add(new byte[bufferSize]);
+        }
+    }
+
+    /**
+     * Take a buffer, blocking while the pool is empty.
+     */
+    public byte[] acquire() throws InterruptedException {
+        byte[] buffer = mFree.poll();
+        if (buffer == null) {
+            mWaits++;
+            buffer = mFree.take();
+        }
+        return buffer;
+    }
+
+    /**
+     * Give a buffer back. Only buffers taken from this pool may be released, once each.
+     */
+    public void release(byte[] buffer) {
+        if (buffer.length != mBufferSize || !mFree.offer(buffer)) {
+            throw new IllegalStateException("Buffer does not belong to this pool");
+        }
+    }
+
+    public int getBufferSize() {
+        return mBufferSize;
+    }
+
+    /**
+     * Return the number of buffers currently in the pool.
+     */
+    public int available() {
+        return mFree.size();
+    }
+
+    /**
+     * Return how many times {@link #acquire()} found the pool empty and had to wait.
+     */
+    public long getWaits() {
+        return mWaits;
+    }
+
+}
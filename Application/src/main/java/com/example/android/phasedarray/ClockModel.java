@@ -0,0 +1,165 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.phasedarray;
+
+/**
+ * Fits offset and skew between the local clock and a peer clock so remote timestamps can be
+ * converted long after the last synchronization.
+ * <p>
+ * Points come from {@link ClockSync}: the filtered offset, its error bound and the local
+ * time it was measured at. The model is a weighted least squares line
+ * {@code offset(t) = intercept + skew * (t - reference)} over a rolling history, each point
+ * weighted by the inverse square of its error. The skew is only trusted once the history
+ * spans {@link #MIN_SKEW_SPAN} so a handful of close points cannot produce a wild rate.
+ * <p>
+ * Like {@link ClockSync} this class is plain Java and not thread safe.
+ */
+public class ClockModel {
+
+    public static final int DEFAULT_HISTORY = 64;
+
+    // Shortest history span, in nanoseconds, before the skew is estimated
+    public static final long MIN_SKEW_SPAN = 2000000000L;
+
+    // Floor for point errors so a lucky zero error sample cannot take all the weight
+    private static final long MIN_ERROR = 1000;
+
+    // Phone crystals are rated in tens of ppm, anything far beyond that is a bad fit
+    private static final double MAX_SKEW = 500e-6;
+
+    private final long[] mTimes;
+    private final long[] mOffsets;
+    private final long[] mErrors;
+    private int mNext;
+    private int mCount;
+
+    private long mReference;
+    private double mIntercept;
+    private double mSkew;
+
+    public ClockModel() {
+        this(DEFAULT_HISTORY);
+    }
+
+    /**
+     * @param history Number of points kept before the oldest is overwritten
+     */
+    public ClockModel(int history) {
+        if (history < 2) {
+            throw new IllegalArgumentException("History too short: " + history);
+        }
+        mTimes = new long[history];
+        mOffsets = new long[history];
+        mErrors = new long[history];
+    }
+
+    /**
+     * Add a measured offset and refit the model.
+     *
+     * @param localTime Local {@link System#nanoTime()} the offset was measured at
+     * @param offset    Peer clock minus local clock, in nanoseconds
+     * @param error     Error bound of the offset, in nanoseconds
+     */
+    public void addPoint(long localTime, long offset, long error) {
+        mTimes[mNext] = localTime;
+        mOffsets[mNext] = offset;
+        mErrors[mNext] = Math.max(error, MIN_ERROR);
+        mNext = (mNext + 1) % mTimes.length;
+        if (mCount < mTimes.length) {
+            mCount++;
+        }
+        fit();
+    }
+
+    /**
+     * Forget every point, e.g. after the peer reconnected.
+     */
+    public void reset() {
+        mNext = 0;
+        mCount = 0;
+        mIntercept = 0;
+        mSkew = 0;
+    }
+
+    private void fit() {
+        int oldest = mCount < mTimes.length ? 0 : mNext;
+        int newest = (mNext + mTimes.length - 1) % mTimes.length;
+        mReference = mTimes[newest];
+
+        // Work relative to the newest point so the sums stay well inside double precision
+        double sw = 0, sx = 0, sy = 0, sxx = 0, sxy = 0;
+        for (int i = 0; i < mCount; i++) {
+            double w = 1.0 / ((double) mErrors[i] * mErrors[i]);
+            double x = mTimes[i] - mReference;
+            double y = mOffsets[i];
+            sw += w;
+            sx += w * x;
+            sy += w * y;
+            sxx += w * x * x;
+            sxy += w * x * y;
+        }
+
+        double skew = 0;
+        double denominator = sw * sxx - sx * sx;
+        if (mReference - mTimes[oldest] >= MIN_SKEW_SPAN && denominator > 0) {
+            skew = (sw * sxy - sx * sy) / denominator;
+            if (Math.abs(skew) > MAX_SKEW) {
+                skew = 0;
+            }
+        }
+        mSkew = skew;
+        mIntercept = (sy - skew * sx) / sw;
+    }
+
+    /**
+     * Return true once at least one point has been added.
+     */
+    public boolean hasEstimate() {
+        return mCount > 0;
+    }
+
+    /**
+     * Return the modelled offset, peer clock minus local clock, at a local time.
+     */
+    public long getOffset(long localTime) {
+        return Math.round(mIntercept + mSkew * (localTime - mReference));
+    }
+
+    /**
+     * Return the fitted rate difference between the clocks, e.g. 2e-5 for 20 ppm.
+     */
+    public double getSkew() {
+        return mSkew;
+    }
+
+    /**
+     * Convert a peer timestamp to the local {@link System#nanoTime()} timebase.
+     */
+    public long toLocalTime(long remoteNanos) {
+        // Solve local = remote - offset(local) for local
+        double remote = remoteNanos - mReference - mIntercept;
+        return mReference + Math.round(remote / (1.0 + mSkew));
+    }
+
+    /**
+     * Convert a local {@link System#nanoTime()} timestamp to the peer timebase.
+     */
+    public long toRemoteTime(long localNanos) {
+        return localNanos + getOffset(localNanos);
+    }
+
+}
@@ -0,0 +1,192 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.phasedarray;
+
+/**
+ * Keeps a rolling window of NTP-style round trips with one peer and derives a filtered
+ * clock offset from the samples with the lowest round trip time.
+ * <p>
+ * Every sample is made of four timestamps: t1 when the probe left this device, t2 when it
+ * arrived at the peer, t3 when the peer answered and t4 when the answer arrived here.
+ * Offsets are peer clock minus local clock, so {@code local = remote - offset}.
+ * <p>
+ * The class has no Android dependencies and is not thread safe, keep one instance per peer
+ * and feed it from a single thread.
+ */
+public class ClockSync {
+
+    public static final int DEFAULT_WINDOW = 32;
+    public static final int DEFAULT_SELECTED = 8;
+
+    // Ring buffers holding the window, indexed by slot
+    private final long[] mOffsets;
+    private final long[] mDelays;
+    private final long[] mTimes;
+
+    // Scratch space for ordering slots by round trip time
+    private final int[] mOrder;
+
+    private final int mSelected;
+    private int mNext;
+    private int mCount;
+
+    private long mOffset;
+    private long mOffsetError;
+    private long mDelay;
+    private long mSampleTime;
+
+    public ClockSync() {
+        this(DEFAULT_WINDOW, DEFAULT_SELECTED);
+    }
+
+    /**
+     * @param window   Number of round trips kept before the oldest is overwritten
+     * @param selected Number of lowest round trip samples the estimate is built from
+     */
+    public ClockSync(int window, int selected) {
+        if (window <= 0 || selected <= 0 || selected > window) {
+            throw new IllegalArgumentException("Invalid window " + window + "/" + selected);
+        }
+        mOffsets = new long[window];
+        mDelays = new long[window];
+        mTimes = new long[window];
+        mOrder = new int[window];
+        mSelected = selected;
+    }
+
+    /**
+     * Add one completed round trip and refresh the estimate.
+     *
+     * @return false if the timestamps are inconsistent and the sample was dropped
+     */
+    public boolean addSample(long t1, long t2, long t3, long t4) {
+        long delay = (t4 - t1) - (t3 - t2);
+        if (delay < 0 || t3 < t2) {
+            return false;
+        }
+        mOffsets[mNext] = ((t2 - t1) + (t3 - t4)) / 2;
+        mDelays[mNext] = delay;
+        mTimes[mNext] = t4;
+        mNext = (mNext + 1) % mOffsets.length;
+        if (mCount < mOffsets.length) {
+            mCount++;
+        }
+        update();
+        return true;
+    }
+
+    /**
+     * Forget every sample, e.g. after the peer reconnected or before a new round whose
+     * samples must not mix with ones taken at an older, drifted offset.
+     */
+    public void reset() {
+        mNext = 0;
+        mCount = 0;
+        mOffset = 0;
+        mOffsetError = 0;
+        mDelay = 0;
+        mSampleTime = 0;
+    }
+
+    /**
+     * Recompute the estimate from the lowest round trip samples in the window.
+     * <p>
+     * Each sample bounds the true offset to {@code offset +/- delay / 2}. The bounds of the
+     * selected samples are intersected; if they overlap, the midpoint and half width of the
+     * overlap are the estimate and its error. Asymmetric paths can make them disjoint, in
+     * which case the single fastest sample is used with its own bound.
+     */
+    private void update() {
+        int k = Math.min(mSelected, mCount);
+        for (int i = 0; i < mCount; i++) {
+            mOrder[i] = i;
+        }
+        // Partial selection sort, only the first k slots need to be ordered
+        for (int i = 0; i < k; i++) {
+            int min = i;
+            for (int j = i + 1; j < mCount; j++) {
+                if (mDelays[mOrder[j]] < mDelays[mOrder[min]]) {
+                    min = j;
+                }
+            }
+            int tmp = mOrder[i];
+            mOrder[i] = mOrder[min];
+            mOrder[min] = tmp;
+        }
+
+        long low = Long.MIN_VALUE;
+        long high = Long.MAX_VALUE;
+        for (int i = 0; i < k; i++) {
+            int slot = mOrder[i];
+            long half = mDelays[slot] / 2;
+            low = Math.max(low, mOffsets[slot] - half);
+            high = Math.min(high, mOffsets[slot] + half);
+        }
+
+        int best = mOrder[0];
+        mDelay = mDelays[best];
+        mSampleTime = mTimes[best];
+        if (low <= high) {
+            mOffset = low + (high - low) / 2;
+            mOffsetError = (high - low) / 2;
+        } else {
+            mOffset = mOffsets[best];
+            mOffsetError = mDelays[best] / 2;
+        }
+    }
+
+    /**
+     * Return true once at least one valid sample has been added.
+     */
+    public boolean hasEstimate() {
+        return mCount > 0;
+    }
+
+    /**
+     * Return the filtered offset, peer clock minus local clock, in nanoseconds.
+     */
+    public long getOffset() {
+        return mOffset;
+    }
+
+    /**
+     * Return the half width of the interval the true offset lies in, in nanoseconds.
+     */
+    public long getOffsetError() {
+        return mOffsetError;
+    }
+
+    /**
+     * Return the lowest round trip time in the window, in nanoseconds.
+     */
+    public long getDelay() {
+        return mDelay;
+    }
+
+    /**
+     * Return the local time t4 of the lowest round trip sample, the time the estimate
+     * describes.
+     */
+    public long getSampleTime() {
+        return mSampleTime;
+    }
+
+    public int getSampleCount() {
+        return mCount;
+    }
+
+}
@@ -0,0 +1,204 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.phasedarray;
+
+import com.example.android.common.logger.Log;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.DatagramChannel;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Datagram path for commands, sent once to the group's broadcast address so every speaker
+ * receives them at the same moment instead of one TCP write after another.
+ * <p>
+ * The group owner opens a sender. Every command goes out twice, the second time
+ * {@link #REPEAT_DELAY_MS} later, and stays in a history ring so peers that still missed it
+ * can ask for it with an {@link ArrayProtocol#TYPE_NACK} over TCP. Peers open a receiver
+ * that hands every frame to a {@link FrameReader.FrameListener}, duplicates included; the
+ * peer's {@link CommandWindow} sorts them out.
+ */
+public class CommandChannel {
+    private static final String TAG = "CommandChannel";
+
+    // Commands kept for repair, a power of two
+    public static final int HISTORY_SIZE = 64;
+
+    // Delay of the repeated transmission, past the typical burst of lost frames
+    public static final long REPEAT_DELAY_MS = 10;
+
+    private final DatagramChannel mChannel;
+    private final SocketAddress mTarget;
+    private final FrameReader.FrameListener mListener;
+    private final ByteBuffer mBuffer = ByteBuffer.allocateDirect(ArrayProtocol.MAX_FRAME_SIZE);
+    private volatile boolean mRunning = true;
+
+    // Sender only
+    private final ScheduledExecutorService mRepeater;
+    private final byte[][] mHistory;
+    private final int[] mHistorySeqs;
+    private final int[] mHistoryLengths;
+
+    private CommandChannel(DatagramChannel channel, SocketAddress target,
+                           FrameReader.FrameListener listener) {
+        mChannel = channel;
+        mTarget = target;
+        mListener = listener;
+        if (target != null) {
+            mRepeater = Executors.newSingleThreadScheduledExecutor();
+            mHistory = new byte[HISTORY_SIZE][ArrayProtocol.MAX_FRAME_SIZE];
+            mHistorySeqs = new int[HISTORY_SIZE];
+            mHistoryLengths = new int[HISTORY_SIZE];
+        } else {
+            mRepeater = null;
+            mHistory = null;
+            mHistorySeqs = null;
+            mHistoryLengths = null;
+        }
+    }
+
+    /**
+     * Open the group owner's sender.
+     *
+     * @param broadcast The group's broadcast or multicast address
+     */
+    public static CommandChannel openSender(InetAddress broadcast, int port) throws IOException {
+        DatagramChannel channel = DatagramChannel.open();
+        channel.socket().setBroadcast(true);
+        return new CommandChannel(channel, new InetSocketAddress(broadcast, port), null);
+    }
+
+    /**
+     * Bind a peer's receiver to a local port and start handing frames to the listener on the
+     * channel's own thread.
+     */
+    public static CommandChannel openReceiver(int port, FrameReader.FrameListener listener)
+            throws IOException {
+        DatagramChannel channel = DatagramChannel.open();
+        channel.socket().setReuseAddress(true);
+        channel.socket().setBroadcast(true);
+        channel.socket().bind(new InetSocketAddress(port));
+        final CommandChannel command = new CommandChannel(channel, null, listener);
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                command.receive();
+            }
+        }, "CommandReceiver");
+        thread.setPriority(Thread.MAX_PRIORITY);
+        thread.start();
+        return command;
+    }
+
+    /**
+     * Send one command frame to every peer and remember it for repair.
+     *
+     * @param seq The frame's sequence number
+     */
+    public void send(final int seq, byte[] frame, int offset, int length) throws IOException {
+        synchronized (this) {
+            int slot = seq & (HISTORY_SIZE - 1);
+            System.arraycopy(frame, offset, mHistory[slot], 0, length);
+            mHistorySeqs[slot] = seq;
+            mHistoryLengths[slot] = length;
+            sendSlot(slot);
+        }
+        mRepeater.schedule(new Runnable() {
+            @Override
+            public void run() {
+                synchronized (CommandChannel.this) {
+                    int slot = seq & (HISTORY_SIZE - 1);
+                    if (mHistorySeqs[slot] != seq) {
+                        return;
+                    }
+                    try {
+                        sendSlot(slot);
+                    } catch (IOException e) {
+                        Log.e(TAG, "Command repeat failed", e);
+                    }
+                }
+            }
+        }, REPEAT_DELAY_MS, TimeUnit.MILLISECONDS);
+    }
+
+    // Caller holds the lock
+    private void sendSlot(int slot) throws IOException {
+        mBuffer.clear();
+        mBuffer.put(mHistory[slot], 0, mHistoryLengths[slot]).flip();
+        mChannel.send(mBuffer, mTarget);
+    }
+
+    /**
+     * Copy a command still in the history.
+     *
+     * @param out At least {@link ArrayProtocol#MAX_FRAME_SIZE} bytes
+     * @return the frame length, or -1 if the command is no longer kept
+     */
+    public synchronized int recall(int seq, byte[] out) {
+        int slot = seq & (HISTORY_SIZE - 1);
+        if (mHistorySeqs[slot] != seq || mHistoryLengths[slot] == 0) {
+            return -1;
+        }
+        System.arraycopy(mHistory[slot], 0, out, 0, mHistoryLengths[slot]);
+        return mHistoryLengths[slot];
+    }
+
+    private void receive() {
+        ByteBuffer in = mBuffer;
+        while (mRunning) {
+            try {
+                in.clear();
+                if (mChannel.receive(in) == null) {
+                    continue;
+                }
+                in.flip();
+                if (ArrayProtocol.check(in) != ArrayProtocol.DECODE_OK) {
+                    continue;
+                }
+                in.limit(ArrayProtocol.LENGTH_SIZE + (in.getShort(0) & 0xffff));
+                mListener.onFrame(in);
+            } catch (ClosedChannelException e) {
+                break;
+            } catch (IOException e) {
+                Log.e(TAG, "Command receive failed", e);
+            }
+        }
+    }
+
+    /**
+     * Stop the receive thread or the repeater and release the socket.
+     */
+    public void close() {
+        mRunning = false;
+        if (mRepeater != null) {
+            mRepeater.shutdownNow();
+        }
+        try {
+            mChannel.close();
+        } catch (IOException e) {
+            Log.e(TAG, "close() of command channel failed", e);
+        }
+    }
+
+}
@@ -0,0 +1,189 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.phasedarray;
+
+/**
+ * Puts the group owner's numbered commands back in order on a peer.
+ * <p>
+ * Commands reach a peer over the datagram channel and over TCP, so they may arrive twice,
+ * late or not at all. {@link #offer(ArrayProtocol.Message)} drops duplicates and holds
+ * commands that arrive ahead of a gap; {@link #poll()} hands them out strictly in sequence.
+ * While commands are held, {@link #getMissingFirst()} and {@link #getMissingCount()} describe
+ * the gap to ask the group owner for. {@link #skipGap()} gives up on it.
+ * <p>
+ * Only used from the control thread.
+ */
+public class CommandWindow {
+
+    public static final int DEFAULT_SIZE = 32;
+
+    private final ArrayProtocol.Message[] mSlots;
+    private final boolean[] mFilled;
+    private final int mMask;
+    private boolean mStarted;
+    private int mNext;
+    private int mHeld;
+
+    // Metrics
+    private long mDuplicates;
+    private long mSkipped;
+
+    public CommandWindow() {
+        this(DEFAULT_SIZE);
+    }
+
+    /**
+     * @param size How many commands may be held ahead of a gap, a power of two
+     */
+    public CommandWindow(int size) {
+        if (size <= 0 || (size & (size - 1)) != 0) {
+            throw new IllegalArgumentException("Window size must be a power of two");
+        }
+        mSlots = new ArrayProtocol.Message[size];
+        mFilled = new boolean[size];
+        mMask = size - 1;
+        for (int i = 0; i < size; i++) {
+            mSlots[i] = new ArrayProtocol.Message();
+        }
+    }
+
+    /**
+     * Forget everything, the next command offered starts the sequence. Called when a new
+     * connection to a group owner begins.
+     */
+    public void reset() {
+        for (int i = 0; i < mFilled.length; i++) {
+            mFilled[i] = false;
+        }
+        mStarted = false;
+        mHeld = 0;
+    }
+
+    /**
+     * Take a copy of a decoded command.
+     *
+     * @return false if the command was already seen
+     */
+    public boolean offer(ArrayProtocol.Message command) {
+        if (!mStarted) {
+            mStarted = true;
+            mNext = command.seq;
+        }
+        int ahead = command.seq - mNext;
+        if (ahead < 0) {
+            mDuplicates++;
+            return false;
+        }
+        if (ahead >= mSlots.length) {
+            // Too far ahead to ever fill the gap, drop what is held and continue from here
+            mSkipped += ahead;
+            reset();
+            mStarted = true;
+            mNext = command.seq;
+        }
+
+        int slot = command.seq & mMask;
+        if (mFilled[slot]) {
+            mDuplicates++;
+            return false;
+        }
+        copy(command, mSlots[slot]);
+        mFilled[slot] = true;
+        mHeld++;
+        return true;
+    }
+
+    /**
+     * Return the next command in sequence, or null while it is missing. The message is only
+     * valid until the next call to {@link #offer(ArrayProtocol.Message)}.
+     */
+    public ArrayProtocol.Message poll() {
+        int slot = mNext & mMask;
+        if (!mStarted || !mFilled[slot]) {
+            return null;
+        }
+        mFilled[slot] = false;
+        mHeld--;
+        mNext++;
+        return mSlots[slot];
+    }
+
+    /**
+     * Return whether commands are held behind a missing one.
+     */
+    public boolean hasGap() {
+        return mHeld > 0 && !mFilled[mNext & mMask];
+    }
+
+    public int getMissingFirst() {
+        return mNext;
+    }
+
+    /**
+     * Return how many commands are missing before the first held one.
+     */
+    public int getMissingCount() {
+        int count = 0;
+        while (count < mSlots.length && !mFilled[(mNext + count) & mMask]) {
+            count++;
+        }
+        return count;
+    }
+
+    /**
+     * Give up on the missing commands so the held ones can be polled.
+     */
+    public void skipGap() {
+        if (hasGap()) {
+            int count = getMissingCount();
+            mNext += count;
+            mSkipped += count;
+        }
+    }
+
+    public long getDuplicates() {
+        return mDuplicates;
+    }
+
+    /**
+     * Return the number of commands that were never received.
+     */
+    public long getSkipped() {
+        return mSkipped;
+    }
+
+    private static void copy(ArrayProtocol.Message from, ArrayProtocol.Message to) {
+        to.type = from.type;
+        to.seq = from.seq;
+        to.time = from.time;
+        to.delay = from.delay;
+        System.arraycopy(from.delays, 0, to.delays, 0, ArrayProtocol.STEER_SLOTS);
+        System.arraycopy(from.weights, 0, to.weights, 0, ArrayProtocol.STEER_SLOTS);
+        to.slot = from.slot;
+        to.gain = from.gain;
+        to.roundTrip = from.roundTrip;
+        to.error = from.error;
+        to.command = from.command;
+        to.round = from.round;
+        to.probe = from.probe;
+        to.receiveTime = from.receiveTime;
+        to.sendTime = from.sendTime;
+        to.first = from.first;
+        to.count = from.count;
+    }
+
+}
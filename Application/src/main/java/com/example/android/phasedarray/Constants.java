@@ -37,6 +37,11 @@ public interface Constants {
     int TIMESTAMP = 7;
 
     int SERVER_PORT = 4545;
+    int SYNC_PORT = 4546;
+    int COMMAND_PORT = 4547;
+
+    // Subnet broadcast of the Wi-Fi Direct group, used when no interface reports one
+    String GROUP_BROADCAST_ADDRESS = "192.168.49.255";
 
     // Key names received from the WiFiDirectService Handler
     String DEVICE_NAME = "device_name";
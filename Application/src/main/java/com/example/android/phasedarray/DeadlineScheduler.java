@@ -0,0 +1,249 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.phasedarray;
+
+import java.util.Comparator;
+import java.util.PriorityQueue;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Runs actions at precise {@link System#nanoTime()} deadlines on its own thread.
+ * <p>
+ * The thread parks until shortly before the earliest deadline and only spins for the last
+ * {@link #getSpinNanos()} nanoseconds, so waiting costs no CPU while the final approach is
+ * not at the mercy of the kernel's wakeup latency. Pending tasks can be cancelled or moved.
+ * Every firing records how far from its deadline the action actually started. Tasks with the
+ * same deadline fire in the order they were scheduled.
+ */
+public class DeadlineScheduler {
+
+    public static final long DEFAULT_SPIN_NANOS = 300000;   // 300 us
+
+    /**
+     * A scheduled action. After it fired, {@link #getError()} tells how late it started.
+     */
+    public static final class Task {
+        private final Runnable mAction;
+        private final long mDeadline;
+        // Breaks ties between equal deadlines, assigned under the queue's lock
+        private long mOrder;
+        private volatile boolean mCancelled;
+        private volatile boolean mFired;
+        private long mFiredAt;
+
+        private Task(Runnable action, long deadline) {
+            mAction = action;
+            mDeadline = deadline;
+        }
+
+        public long getDeadline() {
+            return mDeadline;
+        }
+
+        public boolean isCancelled() {
+            return mCancelled;
+        }
+
+        public boolean hasFired() {
+            return mFired;
+        }
+
+        /**
+         * Return the {@link System#nanoTime()} the action started at, once fired.
+         */
+        public long getFiredAt() {
+            return mFiredAt;
+        }
+
+        /**
+         * Return the achieved minus requested start time, once fired.
+         */
+        public long getError() {
+            return mFiredAt - mDeadline;
+        }
+    }
+
+    private final PriorityQueue<Task> mQueue = new PriorityQueue<>(16, new Comparator<Task>() {
+        @Override
+        public int compare(Task a, Task b) {
+            long diff = a.mDeadline - b.mDeadline;
+            if (diff == 0) {
+                diff = a.mOrder - b.mOrder;
+            }
+            return diff < 0 ? -1 : (diff > 0 ? 1 : 0);
+        }
+    });
+    private long mNextOrder;
+    private final long mSpinNanos;
+    private final Thread mThread;
+    private volatile boolean mRunning = true;
+
+    // Firing error statistics, in nanoseconds
+    private long mFirings;
+    private long mErrorSum;
+    private long mMaxError;
+    private long mLastError;
+
+    public DeadlineScheduler() {
+        this(DEFAULT_SPIN_NANOS);
+    }
+
+    /**
+     * @param spinNanos How long before a deadline the thread stops parking and spins
+     */
+    public DeadlineScheduler(long spinNanos) {
+        mSpinNanos = spinNanos;
+        mThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                loop();
+            }
+        }, "DeadlineScheduler");
+        mThread.setPriority(Thread.MAX_PRIORITY);
+        mThread.start();
+    }
+
+    /**
+     * Run an action at a local {@link System#nanoTime()}. Deadlines in the past fire at once.
+     */
+    public Task schedule(long deadline, Runnable action) {
+        Task task = new Task(action, deadline);
+        synchronized (mQueue) {
+            task.mOrder = mNextOrder++;
+            mQueue.add(task);
+        }
+        LockSupport.unpark(mThread);
+        return task;
+    }
+
+    /**
+     * Cancel a task that has not started yet.
+     *
+     * @return false if the task already fired or was cancelled before
+     */
+    public boolean cancel(Task task) {
+        if (task == null) {
+            return false;
+        }
+        synchronized (mQueue) {
+            if (task.mFired || task.mCancelled) {
+                return false;
+            }
+            task.mCancelled = true;
+            mQueue.remove(task);
+        }
+        LockSupport.unpark(mThread);
+        return true;
+    }
+
+    /**
+     * Cancel a task and schedule its action again at a new deadline.
+     */
+    public Task reschedule(Task task, long deadline) {
+        cancel(task);
+        return schedule(deadline, task.mAction);
+    }
+
+    /**
+     * Drop every pending task and stop the thread.
+     */
+    public void shutdown() {
+        mRunning = false;
+        synchronized (mQueue) {
+            for (Task task : mQueue) {
+                task.mCancelled = true;
+            }
+            mQueue.clear();
+        }
+        LockSupport.unpark(mThread);
+    }
+
+    private void loop() {
+        while (mRunning) {
+            Task task;
+            long wait;
+            synchronized (mQueue) {
+                task = mQueue.peek();
+                if (task == null) {
+                    wait = Long.MAX_VALUE;
+                } else {
+                    wait = task.mDeadline - System.nanoTime() - mSpinNanos;
+                    if (wait <= 0) {
+                        mQueue.poll();
+                    }
+                }
+            }
+            if (task == null || wait > 0) {
+                // schedule() and cancel() unpark the thread when the earliest deadline changes
+                LockSupport.parkNanos(this, task == null ? Long.MAX_VALUE : wait);
+                continue;
+            }
+
+            // Final approach, a cancel during the spin still wins
+            while (System.nanoTime() - task.mDeadline < 0) {
+                if (task.mCancelled) {
+                    break;
+                }
+            }
+            synchronized (mQueue) {
+                if (task.mCancelled) {
+                    continue;
+                }
+                task.mFiredAt = System.nanoTime();
+                task.mFired = true;
+            }
+            task.mAction.run();
+            record(task.getError());
+        }
+    }
+
+    private synchronized void record(long error) {
+        mFirings++;
+        mErrorSum += error;
+        mLastError = error;
+        if (Math.abs(error) > Math.abs(mMaxError)) {
+            mMaxError = error;
+        }
+    }
+
+    public long getSpinNanos() {
+        return mSpinNanos;
+    }
+
+    public synchronized long getFirings() {
+        return mFirings;
+    }
+
+    public synchronized long getLastError() {
+        return mLastError;
+    }
+
+    public synchronized long getMaxError() {
+        return mMaxError;
+    }
+
+    public synchronized long getMeanError() {
+        return mFirings == 0 ? 0 : mErrorSum / mFirings;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return mFirings + " firings, last error " + mLastError + " ns, mean "
+                + getMeanError() + " ns, max " + mMaxError + " ns";
+    }
+
+}
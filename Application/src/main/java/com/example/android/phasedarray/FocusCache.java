@@ -0,0 +1,94 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.phasedarray;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Focusing delays of every speaker, cached per cell of a grid over the room.
+ * <p>
+ * Focus points are snapped to the center of their {@link #CELL_SIZE} cell, so moving the
+ * point within a cell returns the very same delays. The {@link #CAPACITY} most recently used
+ * cells are kept. The cache empties itself after the {@link Beamformer}'s positions or speed
+ * of sound change.
+ */
+public class FocusCache {
+
+    // Edge of a grid cell in meters, snapping moves a point by at most 4.3 cm
+    public static final double CELL_SIZE = 0.05;
+
+    public static final int CAPACITY = 256;
+
+    // Bits per cell coordinate in a key
+    private static final int KEY_BITS = 21;
+    private static final long KEY_MASK = (1L << KEY_BITS) - 1;
+
+    private final Beamformer mBeamformer;
+    private final double[] mScratch;
+    private int mVersion;
+
+    private final LinkedHashMap<Long, int[]> mCells =
+            new LinkedHashMap<Long, int[]>(CAPACITY, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<Long, int[]> eldest) {
+                    return size() > CAPACITY;
+                }
+            };
+
+    public FocusCache(Beamformer beamformer) {
+        mBeamformer = beamformer;
+        mScratch = new double[beamformer.getSlots()];
+        mVersion = beamformer.getVersion();
+    }
+
+    /**
+     * Return every slot's delay to focus on the cell holding a point, in nanoseconds. The
+     * same array is returned for as long as the cell stays cached, it must not be modified.
+     */
+    public synchronized int[] getDelays(double x, double y, double z) {
+        int version = mBeamformer.getVersion();
+        if (version != mVersion) {
+            mCells.clear();
+            mVersion = version;
+        }
+
+        long cx = Math.round(x / CELL_SIZE);
+        long cy = Math.round(y / CELL_SIZE);
+        long cz = Math.round(z / CELL_SIZE);
+        Long key = ((cx & KEY_MASK) << (2 * KEY_BITS)) | ((cy & KEY_MASK) << KEY_BITS)
+                | (cz & KEY_MASK);
+        int[] delays = mCells.get(key);
+        if (delays == null) {
+            mBeamformer.focus(cx * CELL_SIZE, cy * CELL_SIZE, cz * CELL_SIZE, mScratch, 0);
+            delays = new int[mScratch.length];
+            for (int i = 0; i < delays.length; i++) {
+                delays[i] = (int) Math.min(Integer.MAX_VALUE, Math.round(mScratch[i] * 1e9));
+            }
+            mCells.put(key, delays);
+        }
+        return delays;
+    }
+
+    /**
+     * Forget every cached cell.
+     */
+    public synchronized void clear() {
+        mCells.clear();
+    }
+
+}
@@ -0,0 +1,155 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.phasedarray;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+
+/**
+ * Splits a TCP byte stream back into {@link ArrayProtocol} frames.
+ * <p>
+ * Reads go into one reusable buffer. {@link #drain(FrameListener)} hands out every complete
+ * frame the buffer holds and carries a trailing partial frame over to the next read, so
+ * coalesced and split writes both come out as whole frames, in order. Bytes that cannot
+ * start a valid frame are skipped one at a time until the stream lines up again; every such
+ * resync is counted as a framing error.
+ * <p>
+ * A reader belongs to a single connection and its reading thread.
+ */
+public class FrameReader {
+
+    // Room for a burst of frames plus one partial frame
+    private static final int BUFFER_SIZE = 16 * ArrayProtocol.MAX_FRAME_SIZE;
+
+    /**
+     * Receives frames as they are split out of the stream.
+     */
+    public interface FrameListener {
+        /**
+         * @param frame The reader's buffer, positioned on the frame and limited to its end.
+         *              Only valid for the duration of the call.
+         */
+        void onFrame(ByteBuffer frame);
+    }
+
+    private final ByteBuffer mBuffer = ByteBuffer.allocate(BUFFER_SIZE);
+
+    // Metrics
+    private long mFrames;
+    private long mFramingErrors;
+    private long mBytesSkipped;
+    private int mMaxFramesPerRead;
+
+    // Whether the last byte skipped belonged to the current resync
+    private boolean mResyncing;
+
+    /**
+     * Read whatever the stream has into the buffer, blocking until at least one byte arrives.
+     *
+     * @return the number of bytes read, or -1 at end of stream
+     */
+    public int fill(InputStream in) throws IOException {
+        int bytes = in.read(mBuffer.array(), mBuffer.position(), mBuffer.remaining());
+        if (bytes > 0) {
+            mBuffer.position(mBuffer.position() + bytes);
+        }
+        return bytes;
+    }
+
+    /**
+     * Read whatever the channel has into the buffer.
+     *
+     * @return the number of bytes read, or -1 at end of stream
+     */
+    public int fill(ReadableByteChannel in) throws IOException {
+        return in.read(mBuffer);
+    }
+
+    /**
+     * Hand every complete frame in the buffer to the listener.
+     *
+     * @return the number of frames delivered
+     */
+    public int drain(FrameListener listener) {
+        ByteBuffer buffer = mBuffer;
+        buffer.flip();
+        int frames = 0;
+        while (true) {
+            int result = ArrayProtocol.check(buffer);
+            if (result == ArrayProtocol.DECODE_NEED_MORE) {
+                break;
+            }
+            if (result != ArrayProtocol.DECODE_OK) {
+                if (!mResyncing) {
+                    mResyncing = true;
+                    mFramingErrors++;
+                }
+                mBytesSkipped++;
+                buffer.position(buffer.position() + 1);
+                continue;
+            }
+            mResyncing = false;
+
+            int start = buffer.position();
+            int end = start + ArrayProtocol.LENGTH_SIZE + (buffer.getShort(start) & 0xffff);
+            int limit = buffer.limit();
+            buffer.limit(end);
+            listener.onFrame(buffer);
+            buffer.limit(limit);
+            buffer.position(end);
+            frames++;
+        }
+        buffer.compact();
+
+        mFrames += frames;
+        if (frames > mMaxFramesPerRead) {
+            mMaxFramesPerRead = frames;
+        }
+        return frames;
+    }
+
+    public long getFrames() {
+        return mFrames;
+    }
+
+    /**
+     * Return the number of times the stream had to be resynchronized.
+     */
+    public long getFramingErrors() {
+        return mFramingErrors;
+    }
+
+    public long getBytesSkipped() {
+        return mBytesSkipped;
+    }
+
+    /**
+     * Return the largest number of frames a single read produced.
+     */
+    public int getMaxFramesPerRead() {
+        return mMaxFramesPerRead;
+    }
+
+    @Override
+    public String toString() {
+        return mFrames + " frames, " + mFramingErrors + " framing errors, " + mBytesSkipped
+                + " bytes skipped, at most " + mMaxFramesPerRead + " frames per read";
+    }
+
+}
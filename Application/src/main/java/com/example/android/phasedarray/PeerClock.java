@@ -0,0 +1,115 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.phasedarray;
+
+/**
+ * The group owner's clock as seen from a peer, fed round by round from probe samples.
+ * <p>
+ * Each round starts a fresh {@link ClockSync}, so its estimate only holds samples taken at
+ * the current offset. A finished round adds one point to the {@link ClockModel}, stamped at
+ * the local time of the sample the estimate came from, and the model fits the skew across
+ * rounds.
+ * <p>
+ * Thread safe: samples arrive on the receive threads, conversions happen on the control
+ * thread.
+ */
+public class PeerClock {
+
+    private final ClockSync mSync = new ClockSync();
+    private final ClockModel mModel = new ClockModel();
+
+    /**
+     * Drop the previous round's samples.
+     */
+    public synchronized void startRound() {
+        mSync.reset();
+    }
+
+    /**
+     * Add one probe round trip of the current round.
+     *
+     * @return false if the timestamps are inconsistent and the sample was dropped
+     */
+    public synchronized boolean addSample(long t1, long t2, long t3, long t4) {
+        return mSync.addSample(t1, t2, t3, t4);
+    }
+
+    /**
+     * Add the round's estimate to the model.
+     *
+     * @return false if no sample of the round was usable
+     */
+    public synchronized boolean finishRound() {
+        if (!mSync.hasEstimate()) {
+            return false;
+        }
+        mModel.addPoint(mSync.getSampleTime(), mSync.getOffset(), mSync.getOffsetError());
+        return true;
+    }
+
+    /**
+     * Forget everything, e.g. after connecting to a new group owner.
+     */
+    public synchronized void reset() {
+        mSync.reset();
+        mModel.reset();
+    }
+
+    /**
+     * Return true once a round has been finished.
+     */
+    public synchronized boolean hasEstimate() {
+        return mModel.hasEstimate();
+    }
+
+    /**
+     * Return the lowest round trip of the last round, in nanoseconds.
+     */
+    public synchronized long getRoundTrip() {
+        return mSync.getDelay();
+    }
+
+    /**
+     * Return the offset error bound of the last round, in nanoseconds.
+     */
+    public synchronized long getOffsetError() {
+        return mSync.getOffsetError();
+    }
+
+    public synchronized long getOffset() {
+        return mSync.getOffset();
+    }
+
+    public synchronized double getSkew() {
+        return mModel.getSkew();
+    }
+
+    /**
+     * Convert a group owner timestamp to the local {@link System#nanoTime()} timebase.
+     */
+    public synchronized long toLocalTime(long remoteNanos) {
+        return mModel.toLocalTime(remoteNanos);
+    }
+
+    /**
+     * Convert a local {@link System#nanoTime()} timestamp to the group owner's timebase.
+     */
+    public synchronized long toRemoteTime(long localNanos) {
+        return mModel.toRemoteTime(localNanos);
+    }
+
+}
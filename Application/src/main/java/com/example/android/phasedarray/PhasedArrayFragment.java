@@ -18,8 +18,10 @@ package com.example.android.phasedarray;
 
 import android.app.ActionBar;
 import android.app.Activity;
+import android.app.AlertDialog;
 import android.content.BroadcastReceiver;
 import android.content.Context;
+import android.content.DialogInterface;
 import android.content.Intent;
 import android.content.IntentFilter;
 import android.content.res.AssetFileDescriptor;
@@ -52,15 +54,13 @@ import android.widget.Toast;
 import com.example.android.common.logger.Log;
 
 import java.io.IOException;
-import java.nio.ByteBuffer;
-import java.nio.CharBuffer;
-import java.nio.charset.Charset;
 
 
 /**
  * This fragment controls communication with other devices.
  */
-public class PhasedArrayFragment extends Fragment implements WifiP2pManager.ConnectionInfoListener {
+public class PhasedArrayFragment extends Fragment implements WifiP2pManager.ConnectionInfoListener,
+        ArrayController.AudioOutput {
 
     private static final String TAG = "PhasedArrayFragment";
 
@@ -68,6 +68,15 @@ public class PhasedArrayFragment extends Fragment implements WifiP2pManager.Conn
     private static final int REQUEST_CONNECT_DEVICE = 1;
     private static final int REQUEST_ENABLE_BT = 3;
 
+    // Time the beam takes to sweep across the front of the array
+    private static final long SWEEP_DURATION_NANOS = 10000000000L;
+
+    // Names of the Taper windows, indexed by window
+    private static final int[] TAPER_NAMES = {
+            R.string.taper_uniform, R.string.taper_hann, R.string.taper_hamming,
+            R.string.taper_chebyshev,
+    };
+
     // Layout Views
     private Button mPlayButton;
     private Button mSynchButton;
@@ -83,14 +92,8 @@ public class PhasedArrayFragment extends Fragment implements WifiP2pManager.Conn
     // Synchronization component for each device.
 
 
-    private static Long mClientSentTime = null;
-    private static Long mClientReceiveTime = null;
-    private static Long mServerReceiveTime = null;
-    private static Long mServerSentTime = null;
-    private static Long mClockOffset = null;
-    private static Long mLag = null;
     private static Double mAngle = 0.0;
-    private static Long mPhaseDelay = null;
+    private int mTaper = Taper.UNIFORM;
 
 
     /**
@@ -105,13 +108,10 @@ public class PhasedArrayFragment extends Fragment implements WifiP2pManager.Conn
     private boolean isConnected = false;
     private final IntentFilter mIntentFilter = new IntentFilter();
     private int mDevices = 0;
+    private int mSampleRate;
 
-    private long[] mLags = new long[10];
-    private long[] mOffsets = new long[10];
-    private int index = 0;
-    private int iterations;
-
-    int pingIndex = 0;
+    // Runs the array protocol off the main thread
+    private ArrayController mArrayController;
 
 
     public PhasedArrayFragment() {
@@ -150,7 +150,8 @@ public class PhasedArrayFragment extends Fragment implements WifiP2pManager.Conn
             android.util.Log.d("", "Close error.");
         }
         // Arguments: path to the APK file, offset and length of the two resource files, sample rate, audio buffer size.
-        SuperpoweredPlayer(Integer.parseInt(samplerateString), Integer.parseInt(buffersizeString), getActivity().getPackageResourcePath(), fileOffset, fileLength);
+        mSampleRate = Integer.parseInt(samplerateString);
+        SuperpoweredPlayer(mSampleRate, Integer.parseInt(buffersizeString), getActivity().getPackageResourcePath(), fileOffset, fileLength);
 
 
         mManager = (WifiP2pManager) getActivity().getSystemService(Context.WIFI_P2P_SERVICE);
@@ -185,6 +186,9 @@ public class PhasedArrayFragment extends Fragment implements WifiP2pManager.Conn
         if (mWiFiDirectService != null) {
             mWiFiDirectService.stop();
         }
+        if (mArrayController != null) {
+            mArrayController.quit();
+        }
 
 
 
@@ -298,11 +302,16 @@ public class PhasedArrayFragment extends Fragment implements WifiP2pManager.Conn
                 View view = getView();
                 if (null != view) {
                     TextView textView = (TextView) view.findViewById(R.id.steering_angle);
+                    String input = textView.getText().toString();
+                    if (input.indexOf(',') >= 0) {
+                        sendFocusCommand(input);
+                        return;
+                    }
                     try {
-                        double angle = Double.parseDouble(textView.getText().toString());
+                        double angle = Double.parseDouble(input);
                         if (0 <= angle && angle <= 180) {
                             mAngle = angle;
-                            mWiFiDirectService.saveAngle(mAngle, true);
+                            mWiFiDirectService.saveAngle(mAngle);
                         } else {
                             Toast.makeText(getActivity(), "Angle cannot point behind array",
                                     Toast.LENGTH_SHORT).show();
@@ -340,17 +349,19 @@ public class PhasedArrayFragment extends Fragment implements WifiP2pManager.Conn
                 // Send a message using content of the edit text widget
                 View view = getView();
                 if (null != view) {
-                    byte[] send = "stop".getBytes();
-                    mWiFiDirectService.write(send);
+                    mWiFiDirectService.writeStop();
                 }
             }
         });
 
 
 
-        // Initialize the WiFiDirectService to perform connections
-        mWiFiDirectService = new WiFiDirectService(getActivity(), mHandler, mManager,
-                mChannel, (WiFiDirectBroadcastReceiver) mReceiver);
+        // Initialize the WiFiDirectService to perform connections. Everything it reports goes
+        // through the control thread first, which passes UI updates on to mHandler.
+        mArrayController = new ArrayController(mHandler, this, mSampleRate);
+        mWiFiDirectService = new WiFiDirectService(getActivity(), mArrayController.getHandler(),
+                mManager, mChannel, (WiFiDirectBroadcastReceiver) mReceiver);
+        mArrayController.attach(mWiFiDirectService);
 
     }
 
@@ -368,6 +379,50 @@ public class PhasedArrayFragment extends Fragment implements WifiP2pManager.Conn
 
     }
 
+    /**
+     * Focus the array on a point typed as x,y or x,y,z in meters.
+     */
+    private void sendFocusCommand(String input) {
+        String[] coordinates = input.split(",");
+        if (coordinates.length < 2 || coordinates.length > 3) {
+            Toast.makeText(getActivity(), R.string.focus_format, Toast.LENGTH_SHORT).show();
+            return;
+        }
+        try {
+            double x = Double.parseDouble(coordinates[0].trim());
+            double y = Double.parseDouble(coordinates[1].trim());
+            double z = coordinates.length == 3 ? Double.parseDouble(coordinates[2].trim()) : 0;
+            mWiFiDirectService.focus(x, y, z);
+        } catch (NumberFormatException e) {
+            Toast.makeText(getActivity(), R.string.focus_format, Toast.LENGTH_SHORT).show();
+        }
+    }
+
+    /**
+     * Place the speaker of a slot at a position typed as slot,x,y or slot,x,y,z in meters.
+     */
+    private void placeSpeaker(String input) {
+        String[] fields = input.split(",");
+        if (fields.length < 3 || fields.length > 4) {
+            Toast.makeText(getActivity(), R.string.place_speaker_format, Toast.LENGTH_SHORT).show();
+            return;
+        }
+        try {
+            int slot = Integer.parseInt(fields[0].trim());
+            double x = Double.parseDouble(fields[1].trim());
+            double y = Double.parseDouble(fields[2].trim());
+            double z = fields.length == 4 ? Double.parseDouble(fields[3].trim()) : 0;
+            if (slot < 0 || slot >= ArrayProtocol.STEER_SLOTS) {
+                Toast.makeText(getActivity(), R.string.place_speaker_format,
+                        Toast.LENGTH_SHORT).show();
+                return;
+            }
+            mWiFiDirectService.setSpeakerPosition(slot, x, y, z);
+        } catch (NumberFormatException e) {
+            Toast.makeText(getActivity(), R.string.place_speaker_format, Toast.LENGTH_SHORT).show();
+        }
+    }
+
     private void sendPlayCommand() {
         //Check that we're actually connected before trying anything
         if (mWiFiDirectService.getState() != WiFiDirectService.STATE_CONNECTED_SERVER) {
@@ -377,7 +432,7 @@ public class PhasedArrayFragment extends Fragment implements WifiP2pManager.Conn
 
 
 
-        mWiFiDirectService.writeLaglessServer(("play" + ((Long) System.nanoTime()).toString()).getBytes());
+        mWiFiDirectService.writePlay();
     }
 
 
@@ -415,43 +470,9 @@ public class PhasedArrayFragment extends Fragment implements WifiP2pManager.Conn
         actionBar.setSubtitle(subTitle);
     }
 
-    private void lagTimer(){
-        long startTime = System.nanoTime();
-        while(true){
-                if (System.nanoTime() - startTime >= 10000000){
-                    if (mLags[index] != 0) {
-                        index++;
-                        if (index == 10) {
-                            index = 0;
-                            iterations += pingIndex;
-                            Log.d(TAG, "Timer triggered " + ((Integer) iterations).toString() + " times");
-                            break;
-                        }
-                        else {
-                            iterations += pingIndex;
-                            pingIndex = 0;
-                            String ping = "pingpingy" + ((Integer) index).toString() + "X"
-                                    + ((Integer) pingIndex).toString();
-                            mWiFiDirectService.write(ping.getBytes());
-                            lagTimer();
-                            break;
-                        }
-                    }
-                    else if (mLags[index] == 0){
-                        pingIndex++;
-                        String ping = "pingpingy" + ((Integer) index).toString() + "X"
-                                + ((Integer) pingIndex).toString();
-                        mWiFiDirectService.write(ping.getBytes());
-                        lagTimer();
-                        break;
-                    }
-
-                }
-        }
-    }
-
     /**
-     * The Handler that gets information back from the WiFiDirectService
+     * The Handler on the main thread that gets UI updates back from the WiFiDirectService,
+     * by way of the ArrayController
      */
     private final Handler mHandler = new Handler() {
         @Override
@@ -475,134 +496,6 @@ public class PhasedArrayFragment extends Fragment implements WifiP2pManager.Conn
                     }
                     break;
                 case Constants.MESSAGE_WRITE:
-                    break;
-                case Constants.MESSAGE_READ:
-                    byte[] readBuf = (byte[]) msg.obj;
-                    ByteBuffer mBuffer = ByteBuffer.wrap(readBuf, 0, msg.arg1);
-                    CharBuffer cb = Charset.defaultCharset().decode(mBuffer);
-                    // construct a string from the valid bytes in the buffer
-                    String request = cb.toString();
-                    if (request.equals("synch")){
-                        // 'Ping' message should be 18 bytes, to match incoming message
-                        String ping = "pingpingy" + ((Integer) index).toString() + "X"
-                                + ((Integer) pingIndex).toString();
-                        pingIndex++;
-                        mWiFiDirectService.write(ping.getBytes());
-                        lagTimer();
-                    }
-                    if (request.contains("X" + ((Integer) index).toString() + "X"
-                            + ((Integer) pingIndex).toString())){
-                        mServerReceiveTime = mBuffer.getLong(0);
-                        mServerSentTime = mBuffer.getLong(8);
-                        mLag = (mClientReceiveTime - mClientSentTime -
-                                (mServerSentTime - mServerReceiveTime)) / 2;
-                        mClockOffset = mServerReceiveTime - mClientSentTime - mLag;
-                        mLags[index] = mLag;
-                        mOffsets[index] = mClockOffset;
-                        if (index == 9) {
-                            Log.d(TAG, "Lag Times:");
-                            for (int i = 0; i < 10; i++){
-                                Log.d(TAG,((Long) mLags[i]).toString());
-                            }
-                            Log.d(TAG, "Offsets:");
-                            for (int i = 0; i < 10; i++){
-                                Log.d(TAG,((Long) mOffsets[i]).toString());
-                            }
-                        }
-                        //Toast.makeText(activity, mClockOffset.toString(),
-                        //        Toast.LENGTH_LONG).show();
-                        /** Long[] playLag = new Long[100];
-                         Toast.makeText(activity, "Testing",
-                         Toast.LENGTH_SHORT).show();
-                         mMediaPlayer.start();
-                         for (int i = 0; i < playLag.length; i++)
-                         {
-                         long time1 = System.nanoTime();
-                         mMediaPlayer.seekTo(0);
-                         Long seekTime = System.nanoTime() - time1;
-                         playLag[i] = seekTime;
-                         SystemClock.sleep(80);
-                         }
-                         mMediaPlayer.pause();
-                         mPlayerLag = null;
-                         mPlayerLagResolution = null;
-                         Toast.makeText(activity, "Done",
-                         Toast.LENGTH_SHORT).show();
-                         int maxClusterIndex = 0;
-                         for (long i = 10000; i <= 100000; i += 10000){
-                         for (Long lag : playLag){
-                         int clusterIndex = 0;
-                         for (Long compareLag : playLag){
-                         long lagDif = lag - compareLag;
-                         if (Math.abs(lagDif) <= i){
-                         clusterIndex++;
-                         }
-                         }
-                         if (clusterIndex > maxClusterIndex){
-                         maxClusterIndex = clusterIndex;
-                         mPlayerLag = lag;
-                         }
-                         }
-                         if (maxClusterIndex > 25){
-                         mPlayerLagResolution = i;
-                         break;
-                         }
-                         }
-                         if (null != mPlayerLagResolution){
-                         byte[] buffer = mPlayerLagResolution.toString().getBytes();
-                         mWiFiDirectService.writeLagless(buffer);
-                         Toast.makeText(activity, mPlayerLagResolution.toString(),
-                         Toast.LENGTH_SHORT).show();
-                         }
-                         else{
-                         mWiFiDirectService.writeLagless("fail".getBytes());
-                         }
-                         */
-
-                    }
-
-
-                    if (request.contains("play")){
-                        long pStamp = Long.parseLong(request.replace("play",""));
-                        long playAt;
-                        if (null!= mPhaseDelay) {
-                            playAt = pStamp + 1000000000 - mClockOffset - mPhaseDelay;
-                        }
-                        else{
-                            playAt = pStamp + 1000000000 - mClockOffset;
-                        }
-                        while (true) {
-                            if (System.nanoTime() - playAt >= 0) {
-                                onPlayPause(true);
-                                break;
-                            }
-
-                        }
-                    }
-
-                    if (request.contains("phase")){
-                        long delay = Long.parseLong(request.replace("phase", ""));
-                        if (true) {
-                            onPlayPause(false);
-                            long stamp = System.nanoTime() + delay;
-                            while (true){
-                                if (System.nanoTime() >= stamp) {
-                                    onPlayPause(true);
-                                    break;
-                                }
-
-                            }
-                        }
-                        else {
-                            mPhaseDelay = delay;
-                        }
-
-                    }
-
-                    if (request.equals("stop")){
-                        onPlayPause(false);
-                    }
-
                     break;
                 case Constants.MESSAGE_DEVICE_NAME:
                     // save the connected device's name
@@ -624,14 +517,6 @@ public class PhasedArrayFragment extends Fragment implements WifiP2pManager.Conn
                                 Toast.LENGTH_SHORT).show();
                         mDevices--;
                     }
-                case Constants.TIMESTAMP:
-                    if (null != activity) {
-                        if (msg.arg1 == 0) {
-                            mClientSentTime = (Long) msg.obj;
-                        }
-                        else mClientReceiveTime = (Long) msg.obj;
-
-                    }
                     break;
             }
         }
@@ -691,12 +576,62 @@ public class PhasedArrayFragment extends Fragment implements WifiP2pManager.Conn
                 startActivityForResult(serverIntent, REQUEST_CONNECT_DEVICE);
                 return true;
             }
+            case R.id.sweep_beam: {
+                if (mWiFiDirectService.getState() != WiFiDirectService.STATE_CONNECTED_SERVER) {
+                    Toast.makeText(getActivity(), R.string.not_connected, Toast.LENGTH_SHORT).show();
+                    return true;
+                }
+                mWiFiDirectService.writeSweep(0, 180, SWEEP_DURATION_NANOS);
+                return true;
+            }
+            case R.id.cycle_taper: {
+                if (mWiFiDirectService.getState() != WiFiDirectService.STATE_CONNECTED_SERVER) {
+                    Toast.makeText(getActivity(), R.string.not_connected, Toast.LENGTH_SHORT).show();
+                    return true;
+                }
+                // Weights go out with the steering, so steer to the same angle again
+                mTaper = (mTaper + 1) % TAPER_NAMES.length;
+                mWiFiDirectService.setTaper(mTaper, Taper.DEFAULT_SIDELOBE_DB);
+                mWiFiDirectService.saveAngle(mAngle);
+                Toast.makeText(getActivity(), getString(TAPER_NAMES[mTaper]),
+                        Toast.LENGTH_SHORT).show();
+                return true;
+            }
+            case R.id.place_speaker: {
+                final EditText input = new EditText(getActivity());
+                input.setHint(R.string.place_speaker_format);
+                new AlertDialog.Builder(getActivity())
+                        .setTitle(R.string.place_speaker)
+                        .setView(input)
+                        .setPositiveButton(android.R.string.ok,
+                                new DialogInterface.OnClickListener() {
+                                    @Override
+                                    public void onClick(DialogInterface dialog, int which) {
+                                        placeSpeaker(input.getText().toString());
+                                    }
+                                })
+                        .setNegativeButton(android.R.string.cancel, null)
+                        .show();
+                return true;
+            }
+            case R.id.broadcast_commands: {
+                // Opt in, for groups known to pass subnet broadcast
+                item.setChecked(!item.isChecked());
+                mWiFiDirectService.setCommandBroadcast(item.isChecked());
+                return true;
+            }
 
         }
         return false;
     }
     private native void SuperpoweredPlayer(int samplerate, int buffersize, String apkPath, int fileOffset, int fileLength);
-    private native void onPlayPause(boolean play);
+    public native void onPlayPause(boolean play);
+    public native void setGain(float gain);
+    public native void scheduleStart(long frameTimeNanos);
+    public native long getStartTime();
+    public native void setDelaySamples(double samples);
+    public native void addKeyframe(long frameTimeNanos, double samples);
+    public native void setWeight(float weight);
 
     static {
         System.loadLibrary("jniNativeAudio");
@@ -0,0 +1,232 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.phasedarray;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Sends rounds of synchronization probes from a dedicated scheduler thread.
+ * <p>
+ * A round is a fixed number of probes identified by a round id and a sequence number. Probes
+ * go out at a fixed cadence with a bounded number in flight, replies are matched by their
+ * ids and probes that are not answered within the timeout are counted as lost. Completed
+ * round trips are handed to the {@link Listener} on the thread that delivered the reply.
+ */
+public class PingSequencer {
+
+    public static final long DEFAULT_CADENCE_NANOS = 2000000;    // 2 ms
+    public static final long DEFAULT_TIMEOUT_NANOS = 50000000;   // 50 ms
+    public static final int DEFAULT_IN_FLIGHT = 4;
+    public static final int DEFAULT_PROBES = 32;
+
+    // Probe states
+    private static final byte PROBE_IDLE = 0;
+    private static final byte PROBE_IN_FLIGHT = 1;
+    private static final byte PROBE_DONE = 2;
+
+    /**
+     * Puts a probe on the wire.
+     */
+    public interface ProbeSender {
+        /**
+         * Send one probe.
+         *
+         * @return the local {@link System#nanoTime()} taken right before the write
+         */
+        long sendProbe(int round, int seq);
+    }
+
+    /**
+     * Receives the results of probe rounds.
+     */
+    public interface Listener {
+        /**
+         * A new round starts, replies to earlier rounds are ignored from now on. Called
+         * with the sequencer's lock held.
+         */
+        void onRoundStart(int round);
+
+        /**
+         * A probe was answered. t1 and t4 are local, t2 and t3 are the peer's timestamps.
+         */
+        void onSample(long t1, long t2, long t3, long t4);
+
+        /**
+         * Every probe of a round was either answered or timed out. Called on the
+         * scheduler thread.
+         */
+        void onRoundComplete(int round, int answered, int lost);
+    }
+
+    private final ProbeSender mSender;
+    private final Listener mListener;
+    private final ScheduledExecutorService mScheduler;
+    private final long mCadence;
+    private final long mTimeout;
+    private final int mMaxInFlight;
+
+    private final long[] mSentTimes;
+    private final byte[] mStates;
+
+    private ScheduledFuture<?> mTask;
+    private int mRound = -1;
+    private int mProbes;
+    private int mNextSeq;
+    private int mInFlight;
+    private int mAnswered;
+    private int mLost;
+
+    public PingSequencer(ProbeSender sender, Listener listener) {
+        this(sender, listener, DEFAULT_CADENCE_NANOS, DEFAULT_TIMEOUT_NANOS, DEFAULT_IN_FLIGHT,
+                DEFAULT_PROBES);
+    }
+
+    /**
+     * @param cadence     Interval between probe sends, in nanoseconds
+     * @param timeout     Time after which an unanswered probe is counted as lost
+     * @param maxInFlight Number of probes allowed to be unanswered at once
+     * @param maxProbes   Largest round that can be requested
+     */
+    public PingSequencer(ProbeSender sender, Listener listener, long cadence, long timeout,
+                         int maxInFlight, int maxProbes) {
+        if (cadence <= 0 || timeout <= 0 || maxInFlight <= 0 || maxProbes <= 0) {
+            throw new IllegalArgumentException("Invalid sequencer configuration");
+        }
+        mSender = sender;
+        mListener = listener;
+        mCadence = cadence;
+        mTimeout = timeout;
+        mMaxInFlight = maxInFlight;
+        mSentTimes = new long[maxProbes];
+        mStates = new byte[maxProbes];
+        mScheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "PingSequencer");
+                thread.setPriority(Thread.MAX_PRIORITY);
+                return thread;
+            }
+        });
+    }
+
+    /**
+     * Start a round of the default number of probes.
+     */
+    public void startRound() {
+        startRound(Math.min(DEFAULT_PROBES, mStates.length));
+    }
+
+    /**
+     * Start a new round, abandoning any round still running.
+     *
+     * @param probes Number of probes in the round
+     */
+    public synchronized void startRound(int probes) {
+        if (probes <= 0 || probes > mStates.length) {
+            throw new IllegalArgumentException("Invalid probe count " + probes);
+        }
+        if (mTask != null) {
+            mTask.cancel(false);
+        }
+        mRound++;
+        mListener.onRoundStart(mRound);
+        mProbes = probes;
+        mNextSeq = 0;
+        mInFlight = 0;
+        mAnswered = 0;
+        mLost = 0;
+        for (int i = 0; i < probes; i++) {
+            mStates[i] = PROBE_IDLE;
+        }
+        mTask = mScheduler.scheduleAtFixedRate(new Runnable() {
+            @Override
+            public void run() {
+                tick();
+            }
+        }, 0, mCadence, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Match a reply to its probe and report the sample.
+     *
+     * @param t4 Local {@link System#nanoTime()} taken when the reply was read
+     * @return false if the reply is stale, duplicated or unknown
+     */
+    public boolean onReply(int round, int seq, long t2, long t3, long t4) {
+        long t1;
+        synchronized (this) {
+            if (round != mRound || seq < 0 || seq >= mProbes
+                    || mStates[seq] != PROBE_IN_FLIGHT) {
+                return false;
+            }
+            mStates[seq] = PROBE_DONE;
+            mInFlight--;
+            mAnswered++;
+            t1 = mSentTimes[seq];
+        }
+        mListener.onSample(t1, t2, t3, t4);
+        return true;
+    }
+
+    private void tick() {
+        int round, answered, lost;
+        synchronized (this) {
+            long now = System.nanoTime();
+            for (int i = 0; i < mNextSeq; i++) {
+                if (mStates[i] == PROBE_IN_FLIGHT && now - mSentTimes[i] >= mTimeout) {
+                    mStates[i] = PROBE_DONE;
+                    mInFlight--;
+                    mLost++;
+                }
+            }
+            if (mAnswered + mLost < mProbes) {
+                if (mNextSeq < mProbes && mInFlight < mMaxInFlight) {
+                    // Replies are matched under the same lock, so none can race this send
+                    int seq = mNextSeq++;
+                    mStates[seq] = PROBE_IN_FLIGHT;
+                    mInFlight++;
+                    mSentTimes[seq] = mSender.sendProbe(mRound, seq);
+                }
+                return;
+            }
+            if (mTask != null) {
+                mTask.cancel(false);
+                mTask = null;
+            }
+            round = mRound;
+            answered = mAnswered;
+            lost = mLost;
+        }
+        mListener.onRoundComplete(round, answered, lost);
+    }
+
+    /**
+     * Stop sending probes and release the scheduler thread.
+     */
+    public synchronized void shutdown() {
+        if (mTask != null) {
+            mTask.cancel(false);
+            mTask = null;
+        }
+        mScheduler.shutdownNow();
+    }
+
+}
@@ -0,0 +1,145 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.phasedarray;
+
+/**
+ * How closely the array started together after one PLAY command.
+ * <p>
+ * Every peer acknowledges a start with the time it achieved, converted to the group owner's
+ * clock, and its local scheduler error. The report keeps each peer's offset from the
+ * commanded time and summarizes them across the array.
+ */
+public class SkewReport {
+
+    private final int mCommand;
+    private final long mMasterTime;
+    private final long[] mOffsets;
+    private int mAcks;
+    private long mMaxSchedulerError;
+
+    /**
+     * @param command    Sequence number of the command
+     * @param masterTime Start time the command asked for, on the group owner's clock
+     * @param peers      Number of peers the command went to
+     */
+    public SkewReport(int command, long masterTime, int peers) {
+        mCommand = command;
+        mMasterTime = masterTime;
+        mOffsets = new long[peers];
+    }
+
+    /**
+     * Record one peer's acknowledgement. Acknowledgements past the expected count are ignored.
+     *
+     * @param achievedTime   When the peer started, on the group owner's clock
+     * @param schedulerError The peer's achieved minus requested start, on its own clock
+     */
+    public void add(long achievedTime, long schedulerError) {
+        if (mAcks == mOffsets.length) {
+            return;
+        }
+        mOffsets[mAcks++] = achievedTime - mMasterTime;
+        if (Math.abs(schedulerError) > Math.abs(mMaxSchedulerError)) {
+            mMaxSchedulerError = schedulerError;
+        }
+    }
+
+    public boolean isComplete() {
+        return mAcks == mOffsets.length;
+    }
+
+    public int getCommand() {
+        return mCommand;
+    }
+
+    public long getMasterTime() {
+        return mMasterTime;
+    }
+
+    public int getAcks() {
+        return mAcks;
+    }
+
+    public int getExpected() {
+        return mOffsets.length;
+    }
+
+    /**
+     * Return the earliest start relative to the commanded time, in nanoseconds.
+     */
+    public long getMinOffset() {
+        long min = Long.MAX_VALUE;
+        for (int i = 0; i < mAcks; i++) {
+            min = Math.min(min, mOffsets[i]);
+        }
+        return mAcks == 0 ? 0 : min;
+    }
+
+    /**
+     * Return the latest start relative to the commanded time, in nanoseconds.
+     */
+    public long getMaxOffset() {
+        long max = Long.MIN_VALUE;
+        for (int i = 0; i < mAcks; i++) {
+            max = Math.max(max, mOffsets[i]);
+        }
+        return mAcks == 0 ? 0 : max;
+    }
+
+    /**
+     * Return the time between the first and the last peer starting, in nanoseconds.
+     */
+    public long getSpread() {
+        return getMaxOffset() - getMinOffset();
+    }
+
+    /**
+     * Return the standard deviation of the start offsets, in nanoseconds.
+     */
+    public double getStdDev() {
+        if (mAcks < 2) {
+            return 0;
+        }
+        double mean = 0;
+        for (int i = 0; i < mAcks; i++) {
+            mean += mOffsets[i];
+        }
+        mean /= mAcks;
+        double sum = 0;
+        for (int i = 0; i < mAcks; i++) {
+            double d = mOffsets[i] - mean;
+            sum += d * d;
+        }
+        return Math.sqrt(sum / (mAcks - 1));
+    }
+
+    /**
+     * Return the largest local scheduler error any peer reported, in nanoseconds.
+     */
+    public long getMaxSchedulerError() {
+        return mMaxSchedulerError;
+    }
+
+    @Override
+    public String toString() {
+        return "Command " + mCommand + ": " + mAcks + "/" + mOffsets.length + " started, offsets "
+                + getMinOffset() + " to " + getMaxOffset() + " ns, spread " + getSpread()
+                + " ns, stddev " + Math.round(getStdDev()) + " ns, max scheduler error "
+                + mMaxSchedulerError + " ns";
+    }
+
+}
@@ -0,0 +1,109 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.phasedarray;
+
+/**
+ * Every speaker's steering delay for azimuths of 0 to 180 degrees, precomputed from a
+ * {@link Beamformer}, so re-steering is a lookup instead of trigonometry per speaker.
+ * <p>
+ * Rows are {@link #STEP} degrees apart, one delay per slot, in one flat array. Angles in
+ * between are interpolated linearly, angles outside the range are clamped to it. The table
+ * rebuilds itself on the next lookup after the beamformer's positions or speed of sound
+ * change.
+ */
+public class SteeringTable {
+
+    public static final double MIN_ANGLE = 0;
+    public static final double MAX_ANGLE = 180;
+    public static final double STEP = 0.1;
+
+    // Largest angle between the keyframes of a sweep, the peers glide linearly in between
+    public static final double SWEEP_STEP = 5;
+    private static final int ROWS = (int) Math.round((MAX_ANGLE - MIN_ANGLE) / STEP) + 1;
+
+    private final Beamformer mBeamformer;
+    private final int mSlots;
+    // Delays in seconds, row after row
+    private final double[] mDelays;
+    private int mVersion;
+    private boolean mValid;
+
+    public SteeringTable(Beamformer beamformer) {
+        mBeamformer = beamformer;
+        mSlots = beamformer.getSlots();
+        mDelays = new double[ROWS * mSlots];
+    }
+
+    /**
+     * Force a rebuild on the next lookup.
+     */
+    public synchronized void invalidate() {
+        mValid = false;
+    }
+
+    /**
+     * Look up every slot's delay for an azimuth.
+     *
+     * @param angle Degrees from the array's x axis
+     * @param out   Receives one delay per slot, in nanoseconds
+     */
+    public synchronized void getDelays(double angle, int[] out) {
+        int version = mBeamformer.getVersion();
+        if (!mValid || version != mVersion) {
+            build(version);
+        }
+
+        double row = (Math.max(MIN_ANGLE, Math.min(MAX_ANGLE, angle)) - MIN_ANGLE) / STEP;
+        int below = Math.min((int) row, ROWS - 2);
+        double fraction = row - below;
+        int a = below * mSlots;
+        int b = a + mSlots;
+        for (int i = 0; i < mSlots; i++) {
+            double delay = mDelays[a + i] + (mDelays[b + i] - mDelays[a + i]) * fraction;
+            out[i] = (int) Math.min(Integer.MAX_VALUE, Math.round(delay * 1e9));
+        }
+    }
+
+    /**
+     * Plan a sweep from one angle to another at a constant angular speed, as keyframes no
+     * more than {@link #SWEEP_STEP} degrees apart.
+     *
+     * @param maxKeyframes At least 2, longer sweeps get coarser steps
+     * @param offsets      Receives each keyframe's time after the start, in nanoseconds
+     * @param angles       Receives each keyframe's angle
+     * @return the number of keyframes
+     */
+    public static int planSweep(double fromAngle, double toAngle, long durationNanos,
+                                int maxKeyframes, long[] offsets, double[] angles) {
+        int steps = (int) Math.ceil(Math.abs(toAngle - fromAngle) / SWEEP_STEP);
+        steps = Math.max(1, Math.min(maxKeyframes - 1, steps));
+        for (int i = 0; i <= steps; i++) {
+            offsets[i] = durationNanos * i / steps;
+            angles[i] = fromAngle + (toAngle - fromAngle) * i / steps;
+        }
+        return steps + 1;
+    }
+
+    private void build(int version) {
+        for (int row = 0; row < ROWS; row++) {
+            mBeamformer.steer(MIN_ANGLE + row * STEP, 0, mDelays, row * mSlots);
+        }
+        mVersion = version;
+        mValid = true;
+    }
+
+}
@@ -0,0 +1,193 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.phasedarray;
+
+import com.example.android.common.logger.Log;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.DatagramChannel;
+
+/**
+ * Datagram path for synchronization probes, kept apart from the TCP command streams so
+ * probes never wait behind Nagle, delayed ACKs or retransmissions.
+ * <p>
+ * The group owner runs a responder that answers every probe straight from its receive loop.
+ * Peers open a client connected to the group owner, send probes through
+ * {@link #sendProbe(int, int)} and get the answers on the channel's own receive thread.
+ * <p>
+ * Probes and replies are {@link ArrayProtocol#TYPE_PROBE} and
+ * {@link ArrayProtocol#TYPE_PROBE_REPLY} frames, one per datagram.
+ */
+public class SyncChannel {
+    private static final String TAG = "SyncChannel";
+
+    private static final int PROBE_SIZE = ArrayProtocol.frameSize(ArrayProtocol.TYPE_PROBE);
+    private static final int REPLY_SIZE =
+            ArrayProtocol.frameSize(ArrayProtocol.TYPE_PROBE_REPLY);
+
+    /**
+     * Receives answered probes on the client's receive thread.
+     */
+    public interface ReplyListener {
+        /**
+         * @param t2 Responder clock when the probe arrived
+         * @param t3 Responder clock when the reply was sent
+         * @param t4 Local {@link System#nanoTime()} when the reply was read
+         */
+        void onProbeReply(int round, int seq, long t2, long t3, long t4);
+    }
+
+    private final DatagramChannel mChannel;
+    private final ByteBuffer mSendBuffer =
+            ByteBuffer.allocateDirect(ArrayProtocol.MAX_FRAME_SIZE);
+    private final ByteBuffer mReceiveBuffer =
+            ByteBuffer.allocateDirect(ArrayProtocol.MAX_FRAME_SIZE);
+    private final ArrayProtocol.Message mMessage = new ArrayProtocol.Message();
+    private final ReplyListener mListener;
+    private final Thread mThread;
+    private volatile boolean mRunning = true;
+    private int mSequence;
+
+    private SyncChannel(DatagramChannel channel, ReplyListener listener, String name) {
+        mChannel = channel;
+        mListener = listener;
+        mThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                if (mListener == null) {
+                    respond();
+                } else {
+                    receive();
+                }
+            }
+        }, name);
+        mThread.setPriority(Thread.MAX_PRIORITY);
+    }
+
+    /**
+     * Bind the group owner's responder to a local port and start answering probes.
+     */
+    public static SyncChannel openResponder(int port) throws IOException {
+        DatagramChannel channel = DatagramChannel.open();
+        channel.socket().setReuseAddress(true);
+        channel.socket().bind(new InetSocketAddress(port));
+        SyncChannel sync = new SyncChannel(channel, null, "SyncResponder");
+        sync.mThread.start();
+        return sync;
+    }
+
+    /**
+     * Open a probe channel to the group owner's responder.
+     */
+    public static SyncChannel openClient(InetAddress server, int port, ReplyListener listener)
+            throws IOException {
+        if (listener == null) {
+            throw new IllegalArgumentException("Client needs a reply listener");
+        }
+        DatagramChannel channel = DatagramChannel.open();
+        channel.connect(new InetSocketAddress(server, port));
+        SyncChannel sync = new SyncChannel(channel, listener, "SyncClient");
+        sync.mThread.start();
+        return sync;
+    }
+
+    /**
+     * Send one probe to the responder. Only called from a single thread.
+     *
+     * @return the local {@link System#nanoTime()} taken right before the write
+     */
+    public long sendProbe(int round, int seq) throws IOException {
+        mSendBuffer.clear();
+        ArrayProtocol.encodeProbe(mSendBuffer, mSequence++, round, seq);
+        mSendBuffer.flip();
+        long sentTime = System.nanoTime();
+        mChannel.write(mSendBuffer);
+        return sentTime;
+    }
+
+    private void respond() {
+        ByteBuffer in = mReceiveBuffer;
+        ByteBuffer out = mSendBuffer;
+        ArrayProtocol.Message probe = mMessage;
+        while (mRunning) {
+            try {
+                in.clear();
+                SocketAddress from = mChannel.receive(in);
+                long receiveTime = System.nanoTime();
+                in.flip();
+                if (from == null || in.remaining() != PROBE_SIZE
+                        || ArrayProtocol.decode(in, probe) != ArrayProtocol.DECODE_OK
+                        || probe.type != ArrayProtocol.TYPE_PROBE) {
+                    continue;
+                }
+                out.clear();
+                int sendTime = ArrayProtocol.encodeProbeReply(out, probe.seq, probe.round,
+                        probe.probe, receiveTime);
+                out.flip();
+                ArrayProtocol.patchSendTime(out, sendTime, System.nanoTime());
+                mChannel.send(out, from);
+            } catch (ClosedChannelException e) {
+                break;
+            } catch (IOException e) {
+                Log.e(TAG, "Probe reply failed", e);
+            }
+        }
+    }
+
+    private void receive() {
+        ByteBuffer in = mReceiveBuffer;
+        ArrayProtocol.Message reply = mMessage;
+        while (mRunning) {
+            try {
+                in.clear();
+                int bytes = mChannel.read(in);
+                long receiveTime = System.nanoTime();
+                in.flip();
+                if (bytes != REPLY_SIZE
+                        || ArrayProtocol.decode(in, reply) != ArrayProtocol.DECODE_OK
+                        || reply.type != ArrayProtocol.TYPE_PROBE_REPLY) {
+                    continue;
+                }
+                mListener.onProbeReply(reply.round, reply.probe, reply.receiveTime,
+                        reply.sendTime, receiveTime);
+            } catch (ClosedChannelException e) {
+                break;
+            } catch (IOException e) {
+                // Typically ICMP port unreachable before the responder is up, keep listening
+                Log.e(TAG, "Probe receive failed", e);
+            }
+        }
+    }
+
+    /**
+     * Stop the receive thread and release the socket.
+     */
+    public void close() {
+        mRunning = false;
+        try {
+            mChannel.close();
+        } catch (IOException e) {
+            Log.e(TAG, "close() of sync channel failed", e);
+        }
+    }
+
+}
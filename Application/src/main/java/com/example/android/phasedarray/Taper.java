@@ -0,0 +1,113 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.phasedarray;
+
+/**
+ * Amplitude weights across the array, which trade a wider main beam for lower sidelobes.
+ * <p>
+ * Weights are for speakers in order along the array and assume even spacing. The largest
+ * weight is 1.
+ */
+public final class Taper {
+
+    // Windows
+    public static final int UNIFORM = 0;
+    public static final int HANN = 1;
+    public static final int HAMMING = 2;
+    public static final int CHEBYSHEV = 3;
+
+    // Sidelobe level of the Dolph-Chebyshev window below the main beam
+    public static final double DEFAULT_SIDELOBE_DB = 30;
+
+    private Taper() {
+    }
+
+    /**
+     * Compute the weights of count speakers.
+     *
+     * @param sidelobeDb Sidelobe attenuation of {@link #CHEBYSHEV}, ignored by the others
+     * @param out        Receives count weights
+     */
+    public static void window(int type, int count, double sidelobeDb, double[] out) {
+        if (count <= 2 && type != UNIFORM) {
+            // Nothing to taper, and the formulas divide by count - 1
+            type = UNIFORM;
+        }
+        switch (type) {
+            case HANN:
+                // Endpoints that would be silent are left off
+                for (int n = 0; n < count; n++) {
+                    out[n] = 0.5 - 0.5 * Math.cos(2 * Math.PI * (n + 1) / (count + 1));
+                }
+                break;
+            case HAMMING:
+                for (int n = 0; n < count; n++) {
+                    out[n] = 0.54 - 0.46 * Math.cos(2 * Math.PI * n / (count - 1));
+                }
+                break;
+            case CHEBYSHEV:
+                chebyshev(count, sidelobeDb, out);
+                break;
+            default:
+                for (int n = 0; n < count; n++) {
+                    out[n] = 1;
+                }
+                return;
+        }
+        normalize(count, out);
+    }
+
+    // Dolph-Chebyshev weights, the inverse DFT of a Chebyshev polynomial sampled on the circle
+    private static void chebyshev(int count, double sidelobeDb, double[] out) {
+        int order = count - 1;
+        double ratio = Math.pow(10, Math.abs(sidelobeDb) / 20);
+        double beta = Math.cosh(acosh(ratio) / order);
+        for (int n = 0; n < count; n++) {
+            double sum = 0;
+            for (int k = 0; k < count; k++) {
+                double value = chebyshevPolynomial(order, beta * Math.cos(Math.PI * k / count));
+                // Centre the window, for an even count that needs a half sample shift
+                double angle = 2 * Math.PI * k * (n - order / 2.0) / count;
+                sum += value * Math.cos(angle);
+            }
+            out[n] = sum;
+        }
+    }
+
+    private static double chebyshevPolynomial(int order, double x) {
+        if (Math.abs(x) <= 1) {
+            return Math.cos(order * Math.acos(x));
+        }
+        double value = Math.cosh(order * acosh(Math.abs(x)));
+        return x < 0 && order % 2 == 1 ? -value : value;
+    }
+
+    private static double acosh(double x) {
+        return Math.log(x + Math.sqrt(x * x - 1));
+    }
+
+    private static void normalize(int count, double[] out) {
+        double max = 0;
+        for (int n = 0; n < count; n++) {
+            max = Math.max(max, out[n]);
+        }
+        for (int n = 0; n < count; n++) {
+            out[n] /= max;
+        }
+    }
+
+}
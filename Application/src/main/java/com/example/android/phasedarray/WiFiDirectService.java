@@ -17,6 +17,7 @@
 package com.example.android.phasedarray;
 
 import android.content.Context;
+import android.net.wifi.WifiManager;
 import android.net.wifi.p2p.WifiP2pConfig;
 import android.net.wifi.p2p.WifiP2pManager;
 import android.os.Bundle;
@@ -31,10 +32,12 @@ import java.io.InputStream;
 import java.io.OutputStream;
 import java.net.InetAddress;
 import java.net.InetSocketAddress;
-import java.net.ServerSocket;
+import java.net.InterfaceAddress;
+import java.net.NetworkInterface;
 import java.net.Socket;
 import java.nio.ByteBuffer;
 import java.util.UUID;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public class WiFiDirectService {
     // Debugging
@@ -57,21 +60,89 @@ public class WiFiDirectService {
     private final Handler mHandler;
     private ConnectThread mConnectThread;
     private ConnectedThread mConnectedThread;
-    private ConnectedServerThread[] mConnectedServerThread = new ConnectedServerThread[5];
-    private InputStream[] mInStream = new InputStream[5];
-    private OutputStream[] mOutStream = new OutputStream[5];
-    private int mStreams;
+    private volatile ArrayServer mServer;
     private int mState;
 
     private InputStream mInputStream;
     private OutputStream mOutputStream;
 
+    // Datagram probe path, a client on peers and a responder on the group owner
+    private SyncChannel mSyncChannel;
+    private SyncChannel mSyncResponder;
+    private SyncChannel.ReplyListener mProbeListener;
+
+    // Datagram command path, a sender on the group owner and a receiver on peers
+    private volatile CommandChannel mCommandChannel;
+    private CommandChannel mCommandReceiver;
+    private boolean mCommandBroadcast;
+    private final WifiManager.MulticastLock mMulticastLock;
+    private final byte[] mRepairBuffer = new byte[ArrayProtocol.MAX_FRAME_SIZE];
 
     private String mConnectedDeviceName = null;
     private SparseArray<String> mConnectedDevices = new SparseArray<>();
     private static Integer index = 0;
-    private static final double mTimeDelay = 1000000;
-    private static double mPhaseDelay;
+
+    // Sequence numbers and scratch space for outgoing command frames
+    private final AtomicInteger mSequence = new AtomicInteger();
+    private final ByteBuffer mCommandBuffer = ByteBuffer.allocate(ArrayProtocol.MAX_FRAME_SIZE);
+    private final ByteBuffer mProbeBuffer = ByteBuffer.allocate(ArrayProtocol.MAX_FRAME_SIZE);
+    private final ByteBuffer mNackBuffer = ByteBuffer.allocate(ArrayProtocol.MAX_FRAME_SIZE);
+    private final ByteBuffer mReportBuffer = ByteBuffer.allocate(ArrayProtocol.MAX_FRAME_SIZE);
+
+    // Lead of command execution times over the group owner's clock, in nanoseconds
+    private static final long DEFAULT_LEAD_NANOS = 1000000000L;   // until every peer reported
+    private static final long MIN_LEAD_NANOS = 5000000L;
+    private static final long LEAD_MARGIN_NANOS = 5000000L;       // handoff and scheduler spin
+
+    // Start acknowledgements, collected per PLAY command on the group owner
+    private static final int MAX_SKEW_REPORTS = 8;
+    private static final long SKEW_RESYNC_NANOS = 250000;         // 250 us across the array
+    private final SparseArray<SkewReport> mSkewReports = new SparseArray<>();
+    private volatile SkewReport mLastSkewReport;
+    private final ByteBuffer mAckBuffer = ByteBuffer.allocate(ArrayProtocol.MAX_FRAME_SIZE);
+
+    // Per-speaker steering on the group owner, peers get a slot as they connect
+    private final Beamformer mBeamformer = new Beamformer(ArrayProtocol.STEER_SLOTS);
+    private final SteeringTable mSteeringTable = new SteeringTable(mBeamformer);
+    private final FocusCache mFocusCache = new FocusCache(mBeamformer);
+    // Cached delays last sent by focus(), the same cell is not sent again
+    private int[] mFocusDelays;
+
+    // Amplitude taper sent with every STEER, over the speakers in slots in order along x
+    private int mTaper = Taper.UNIFORM;
+    private double mSidelobeDb = Taper.DEFAULT_SIDELOBE_DB;
+    private final float[] mSteerWeights = new float[ArrayProtocol.STEER_SLOTS];
+    private final int[] mTaperSlots = new int[ArrayProtocol.STEER_SLOTS];
+    private final double[] mTaperWeights = new double[ArrayProtocol.STEER_SLOTS];
+    private final int[] mSteerDelays = new int[ArrayProtocol.STEER_SLOTS];
+    private final ByteBuffer mAssignBuffer = ByteBuffer.allocate(ArrayProtocol.MAX_FRAME_SIZE);
+
+    // Keyframes of one trajectory, no more than peers can hold behind a lost one
+    public static final int MAX_KEYFRAMES = CommandWindow.DEFAULT_SIZE;
+    private final Object mWriteLock = new Object();
+
+    // Buffers carrying received frames to the Handler
+    private static final int READ_BUFFERS = 32;
+    private final BufferPool mReadBuffers =
+            new BufferPool(READ_BUFFERS, ArrayProtocol.MAX_FRAME_SIZE);
+
+    // Copies frames from the TCP stream and the command receiver into pooled buffers. The
+    // readers reuse their buffers, the Handler gives these back through releaseBuffer().
+    private final FrameReader.FrameListener mFrameHandoff = new FrameReader.FrameListener() {
+        @Override
+        public void onFrame(ByteBuffer frame) {
+            byte[] buffer;
+            try {
+                buffer = mReadBuffers.acquire();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+            int bytes = frame.remaining();
+            frame.get(buffer, 0, bytes);
+            mHandler.obtainMessage(Constants.MESSAGE_READ, bytes, -1, buffer).sendToTarget();
+        }
+    };
 
     // Constants that indicate the current connection state
     public static final int STATE_NONE = 0;       // we're doing nothing
@@ -94,10 +165,13 @@ public class WiFiDirectService {
         mHandler = handler;
         mReceiver = receiver;
 
-
-
-
-
+        // Some devices filter broadcast datagrams while no multicast lock is held
+        WifiManager wifi = (WifiManager) context.getApplicationContext()
+                .getSystemService(Context.WIFI_SERVICE);
+        mMulticastLock = wifi == null ? null : wifi.createMulticastLock(TAG);
+        if (mMulticastLock != null) {
+            mMulticastLock.setReferenceCounted(false);
+        }
     }
 
     /**
@@ -191,13 +265,344 @@ public class WiFiDirectService {
         mConnectedThread = new ConnectedThread(address);
         mConnectedThread.start();
 
+        closeSyncChannels();
+        try {
+            mSyncChannel = SyncChannel.openClient(address, Constants.SYNC_PORT, mProbeListener);
+        } catch (IOException e) {
+            Log.e(TAG, "sync channel not created, probing over TCP", e);
+        }
+
+        closeCommandChannels();
+        try {
+            mCommandReceiver = CommandChannel.openReceiver(Constants.COMMAND_PORT, mFrameHandoff);
+            if (mMulticastLock != null) {
+                mMulticastLock.acquire();
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "command receiver not created", e);
+        }
+
         setState(STATE_CONNECTED);
     }
 
-    public synchronized void saveAngle(double angle, boolean isPlaying){
-        mPhaseDelay = -(3/4)*mTimeDelay* Math.cos(Math.toRadians(angle));
-        Long delay = (long) mPhaseDelay;
-        writePhased(delay, isPlaying);
+    /**
+     * Return a buffer received with {@link Constants#MESSAGE_READ} once its frame has been
+     * decoded. The buffer must not be used afterwards.
+     */
+    public void releaseBuffer(byte[] buffer) {
+        mReadBuffers.release(buffer);
+    }
+
+    /**
+     * Set the listener that receives probe replies from the datagram sync channel. Must be
+     * set before {@link #connected(InetAddress)}.
+     */
+    public synchronized void setProbeListener(SyncChannel.ReplyListener listener) {
+        mProbeListener = listener;
+    }
+
+    /**
+     * Send a synchronization probe to the group owner, over the datagram channel when it is
+     * open and over the TCP stream otherwise.
+     *
+     * @return the local time the probe was sent at
+     */
+    public long writeProbe(int round, int seq) {
+        SyncChannel channel = mSyncChannel;
+        if (channel != null) {
+            try {
+                return channel.sendProbe(round, seq);
+            } catch (IOException e) {
+                Log.e(TAG, "Exception during probe", e);
+            }
+        }
+        // Only the sequencer thread sends probes, so the probe buffer is not shared
+        ByteBuffer probe = mProbeBuffer;
+        probe.clear();
+        ArrayProtocol.encodeProbe(probe, mSequence.getAndIncrement(), round, seq);
+        long sentTime = System.nanoTime();
+        write(probe.array(), 0, probe.position());
+        return sentTime;
+    }
+
+    /**
+     * Ask the group owner to resend commands that never arrived.
+     */
+    public void writeNack(int first, int count) {
+        // Only the control thread sends NACKs
+        ByteBuffer nack = mNackBuffer;
+        nack.clear();
+        ArrayProtocol.encodeNack(nack, mSequence.getAndIncrement(), first, count);
+        write(nack.array(), 0, nack.position());
+    }
+
+    /**
+     * Tell the group owner the outcome of a synchronization round.
+     */
+    public void writeSyncReport(long roundTrip, long error) {
+        // Only the sequencer thread completes rounds, so the report buffer is not shared
+        ByteBuffer report = mReportBuffer;
+        report.clear();
+        ArrayProtocol.encodeSyncReport(report, mSequence.getAndIncrement(), roundTrip, error);
+        write(report.array(), 0, report.position());
+    }
+
+    /**
+     * Report a start to the group owner. Only called from the control thread.
+     */
+    public void writeStartAck(int command, long achievedTime, long schedulerError) {
+        ByteBuffer ack = mAckBuffer;
+        ack.clear();
+        ArrayProtocol.encodeStartAck(ack, mSequence.getAndIncrement(), command, achievedTime,
+                schedulerError);
+        write(ack.array(), 0, ack.position());
+    }
+
+    /**
+     * Return the skew report of the last PLAY command every peer acknowledged, or of
+     * an older one that was given up on, or null before the first.
+     */
+    public SkewReport getLastSkewReport() {
+        return mLastSkewReport;
+    }
+
+    // Start collecting acknowledgements for a command, caller holds the command buffer's lock
+    private void expectStarts(int command, long masterTime) {
+        ArrayServer server = mServer;
+        int peers = server == null ? 0 : server.getPeerCount();
+        if (peers == 0) {
+            return;
+        }
+        synchronized (mSkewReports) {
+            while (mSkewReports.size() >= MAX_SKEW_REPORTS) {
+                // Some peer never acknowledged, report what arrived
+                finishSkewReport(mSkewReports.valueAt(0));
+            }
+            mSkewReports.put(command, new SkewReport(command, masterTime, peers));
+        }
+    }
+
+    // On the server's selector thread
+    private void onStartAck(int command, long achievedTime, long schedulerError) {
+        SkewReport report;
+        synchronized (mSkewReports) {
+            report = mSkewReports.get(command);
+            if (report == null) {
+                return;
+            }
+            report.add(achievedTime, schedulerError);
+            if (!report.isComplete()) {
+                return;
+            }
+            finishSkewReport(report);
+        }
+        if (report.getSpread() > SKEW_RESYNC_NANOS) {
+            Log.w(TAG, "Array skew " + report.getSpread() + " ns, resynchronizing");
+            writeSynch();
+        }
+    }
+
+    // Caller holds the lock on mSkewReports
+    private void finishSkewReport(SkewReport report) {
+        mSkewReports.remove(report.getCommand());
+        mLastSkewReport = report;
+        Log.d(TAG, report.toString());
+    }
+
+    /**
+     * Return how far ahead of now commands should be scheduled so every peer has them, and
+     * has asked for them again if they got lost, before they are due.
+     * <p>
+     * Each peer needs about half its round trip for delivery, a full one for a repair and its
+     * offset error on top. Peers that have not reported yet get the conservative default.
+     */
+    public long getCommandLead() {
+        ArrayServer server = mServer;
+        if (server == null || server.getPeerCount() == 0) {
+            return DEFAULT_LEAD_NANOS;
+        }
+        long lead = 0;
+        for (ArrayServer.Peer peer : server.getPeers()) {
+            if (!peer.hasSyncReport()) {
+                return DEFAULT_LEAD_NANOS;
+            }
+            lead = Math.max(lead, peer.getRoundTrip() * 3 / 2 + peer.getSyncError());
+        }
+        if (mCommandChannel != null) {
+            lead = Math.max(lead, CommandChannel.REPEAT_DELAY_MS * 1000000L);
+        }
+        return Math.min(DEFAULT_LEAD_NANOS, Math.max(MIN_LEAD_NANOS, lead + LEAD_MARGIN_NANOS));
+    }
+
+    /**
+     * Choose whether the group owner sends commands as one datagram to the whole group, with
+     * repair over TCP, or over each peer's TCP connection. Off by default: many groups drop
+     * subnet broadcast, and a peer that never receives a datagram never sees a gap to repair.
+     * Turning it on takes effect on the next {@link #connectedServer(String)}, turning it off
+     * at once.
+     */
+    public synchronized void setCommandBroadcast(boolean broadcast) {
+        mCommandBroadcast = broadcast;
+        if (!broadcast && mCommandChannel != null) {
+            mCommandChannel.close();
+            mCommandChannel = null;
+        }
+    }
+
+    public synchronized boolean isCommandBroadcast() {
+        return mCommandBroadcast;
+    }
+
+    // Give a new peer the lowest free speaker slot, on the server's selector thread
+    private void assignSlot(ArrayServer.Peer peer) {
+        ArrayServer server = mServer;
+        if (server == null) {
+            return;
+        }
+        int slot = 0;
+        while (slot < ArrayProtocol.STEER_SLOTS && isSlotTaken(server, slot)) {
+            slot++;
+        }
+        if (slot == ArrayProtocol.STEER_SLOTS) {
+            Log.w(TAG, "No speaker slot left for peer " + peer.getId() + ", it will not steer");
+            return;
+        }
+        peer.setSlot(slot);
+        updateOccupiedSlots(server);
+        // Not a numbered command, peers take it whenever it arrives
+        mAssignBuffer.clear();
+        ArrayProtocol.encodeAssign(mAssignBuffer, 0, slot);
+        server.send(peer, mAssignBuffer.array(), 0, mAssignBuffer.position());
+    }
+
+    // Steer only the slots peers are in, an empty one never holds the others back
+    private void updateOccupiedSlots(ArrayServer server) {
+        for (int slot = 0; slot < ArrayProtocol.STEER_SLOTS; slot++) {
+            mBeamformer.setOccupied(slot, isSlotTaken(server, slot));
+        }
+    }
+
+    private static boolean isSlotTaken(ArrayServer server, int slot) {
+        for (ArrayServer.Peer peer : server.getPeers()) {
+            if (peer.getSlot() == slot) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // Resend commands a peer reported missing, on the server's selector thread
+    private void repair(ArrayServer.Peer peer, int first, int count) {
+        CommandChannel channel = mCommandChannel;
+        ArrayServer server = mServer;
+        if (channel == null || server == null) {
+            return;
+        }
+        for (int i = 0; i < count && i < CommandChannel.HISTORY_SIZE; i++) {
+            int length = channel.recall(first + i, mRepairBuffer);
+            if (length < 0) {
+                Log.w(TAG, "Command " + (first + i) + " no longer kept for peer " + peer.getId());
+                continue;
+            }
+            server.send(peer, mRepairBuffer, 0, length);
+        }
+    }
+
+    /**
+     * Return the broadcast address of the interface holding a local address, or the group's
+     * usual one when it cannot be determined.
+     */
+    private static InetAddress findBroadcastAddress(String localAddress) throws IOException {
+        NetworkInterface nif = NetworkInterface.getByInetAddress(
+                InetAddress.getByName(localAddress));
+        if (nif != null) {
+            for (InterfaceAddress address : nif.getInterfaceAddresses()) {
+                if (address.getBroadcast() != null) {
+                    return address.getBroadcast();
+                }
+            }
+        }
+        return InetAddress.getByName(Constants.GROUP_BROADCAST_ADDRESS);
+    }
+
+    private synchronized void closeCommandChannels() {
+        if (mCommandChannel != null) {
+            mCommandChannel.close();
+            mCommandChannel = null;
+        }
+        if (mCommandReceiver != null) {
+            mCommandReceiver.close();
+            mCommandReceiver = null;
+        }
+        if (mMulticastLock != null && mMulticastLock.isHeld()) {
+            mMulticastLock.release();
+        }
+    }
+
+    private synchronized void closeSyncChannels() {
+        if (mSyncChannel != null) {
+            mSyncChannel.close();
+            mSyncChannel = null;
+        }
+        if (mSyncResponder != null) {
+            mSyncResponder.close();
+            mSyncResponder = null;
+        }
+    }
+
+    /**
+     * Steer the array to an angle from its x axis, each peer gets the delay of its position.
+     */
+    public synchronized void saveAngle(double angle){
+        synchronized (mCommandBuffer) {
+            mSteeringTable.getDelays(angle, mSteerDelays);
+            sendSteer();
+        }
+    }
+
+    /**
+     * Focus the array on a point in meters, in the coordinates of the speaker positions.
+     * Moving the point within the same {@link FocusCache#CELL_SIZE} cell sends nothing.
+     */
+    public synchronized void focus(double x, double y, double z) {
+        synchronized (mCommandBuffer) {
+            int[] delays = mFocusCache.getDelays(x, y, z);
+            if (delays == mFocusDelays) {
+                return;
+            }
+            System.arraycopy(delays, 0, mSteerDelays, 0, ArrayProtocol.STEER_SLOTS);
+            sendSteer();
+            mFocusDelays = delays;
+        }
+    }
+
+    /**
+     * Choose the amplitude taper across the array, sent with the next steering command.
+     *
+     * @param taper      One of the {@link Taper} windows
+     * @param sidelobeDb Sidelobe attenuation of {@link Taper#CHEBYSHEV}
+     */
+    public void setTaper(int taper, double sidelobeDb) {
+        synchronized (mCommandBuffer) {
+            mTaper = taper;
+            mSidelobeDb = sidelobeDb;
+            mFocusDelays = null;
+        }
+    }
+
+    /**
+     * Place the speaker of a slot, in meters. Steering and focus use the new position from
+     * the next command on.
+     */
+    public void setSpeakerPosition(int slot, double x, double y, double z) {
+        mBeamformer.setPosition(slot, x, y, z);
+    }
+
+    /**
+     * Return the model of speaker positions steering delays are computed from.
+     */
+    public Beamformer getBeamformer() {
+        return mBeamformer;
     }
 
     // Connects devices without closing accept thread, allows for more connections.
@@ -219,17 +624,68 @@ public class WiFiDirectService {
         }
 
 
-        // Start the thread to manage the connection and perform transmissions
+        // One responder answers the probes of every peer
+        if (mSyncResponder == null) {
+            try {
+                mSyncResponder = SyncChannel.openResponder(Constants.SYNC_PORT);
+            } catch (IOException e) {
+                Log.e(TAG, "sync responder not created", e);
+            }
+        }
+
+        // Commands go to the whole group at once when broadcasting is possible
+        if (mCommandBroadcast && mCommandChannel == null) {
+            try {
+                mCommandChannel = CommandChannel.openSender(findBroadcastAddress(deviceAddress),
+                        Constants.COMMAND_PORT);
+            } catch (IOException e) {
+                Log.e(TAG, "command sender not created, commands go over TCP", e);
+            }
+        }
+
+        // One selector thread serves every peer, later peers just connect to it
+        if (mServer == null) {
+            try {
+                mServer = new ArrayServer(Constants.SERVER_PORT, mServerListener);
+                updateOccupiedSlots(mServer);
+            } catch (IOException e) {
+                Log.e(TAG, "server socket not created", e);
+            }
+        }
+
         mHandler.obtainMessage(Constants.MESSAGE_DEVICE_NAME).sendToTarget();
-        if (index < 2) {
-            mConnectServerStreams();
+        if (mState != STATE_CONNECTED_SERVER) {
             setState(STATE_CONNECTED_SERVER);
         }
-        else if (index >= 2) {
-            mConnectServerStreams();
-        }
     }
 
+    private final ArrayServer.Listener mServerListener = new ArrayServer.Listener() {
+        @Override
+        public void onPeerConnected(ArrayServer.Peer peer) {
+            assignSlot(peer);
+        }
+
+        @Override
+        public void onPeerDisconnected(ArrayServer.Peer peer) {
+            ArrayServer server = mServer;
+            if (server != null) {
+                updateOccupiedSlots(server);
+            }
+            connectionLost();
+        }
+
+        @Override
+        public void onPeerFrame(ArrayServer.Peer peer, ArrayProtocol.Message message) {
+            if (message.type == ArrayProtocol.TYPE_NACK) {
+                repair(peer, message.first, message.count);
+            } else if (message.type == ArrayProtocol.TYPE_SYNC_REPORT) {
+                peer.setSyncReport(message.roundTrip, message.error);
+            } else if (message.type == ArrayProtocol.TYPE_START_ACK) {
+                onStartAck(message.command, message.time, message.error);
+            }
+        }
+    };
+
     /**
      * Stop all threads
      */
@@ -245,6 +701,14 @@ public class WiFiDirectService {
             mConnectedThread = null;
         }
 
+        if (mServer != null) {
+            mServer.close();
+            mServer = null;
+        }
+
+        closeSyncChannels();
+        closeCommandChannels();
+
         setState(STATE_NONE);
     }
 
@@ -254,53 +718,173 @@ public class WiFiDirectService {
      * @see ConnectedThread#write(byte[])
      */
     public void write(byte[] buffer) {
-        try {
-            long mSTime = System.nanoTime();
-            mOutputStream.flush();
-            mOutputStream.write(buffer);
+        write(buffer, 0, buffer.length);
+    }
 
-            // Share the sent message back to the UI Activity
-            mHandler.obtainMessage(Constants.TIMESTAMP, 0, -1, mSTime)
-                    .sendToTarget();
-        } catch (IOException e) {
-            Log.e(TAG, "Exception during write", e);
+    public void write(byte[] buffer, int offset, int length) {
+        // Probes and NACKs are written from different threads, keep their frames whole
+        synchronized (mWriteLock) {
+            try {
+                long mSTime = System.nanoTime();
+                mOutputStream.flush();
+                mOutputStream.write(buffer, offset, length);
+
+                // Share the sent message back to the UI Activity
+                mHandler.obtainMessage(Constants.TIMESTAMP, 0, -1, mSTime)
+                        .sendToTarget();
+            } catch (IOException e) {
+                Log.e(TAG, "Exception during write", e);
+            }
         }
     }
 
-    public void writePhased(long delay, boolean isPlaying) {
-        for (int i = 0; i < mStreams; i++) {
+    /**
+     * Tell every peer to start playing as soon as all of them can do so together.
+     *
+     * @return the group owner's {@link System#nanoTime()} playback starts at
+     */
+    public long writePlay() {
+        synchronized (mCommandBuffer) {
+            int seq = mSequence.getAndIncrement();
+            long time = System.nanoTime() + getCommandLead();
+            mCommandBuffer.clear();
+            ArrayProtocol.encodePlay(mCommandBuffer, seq, time);
+            expectStarts(seq, time);
+            writeCommandBuffer();
+            return time;
+        }
+    }
 
+    public void writeStop() {
+        synchronized (mCommandBuffer) {
+            mCommandBuffer.clear();
+            ArrayProtocol.encodeStop(mCommandBuffer, mSequence.getAndIncrement(),
+                    System.nanoTime() + getCommandLead());
+            writeCommandBuffer();
+        }
+    }
 
-            if (isPlaying) {
-                if (delay > mPhaseDelay) {
-                    Long pDelay = (delay - (long) mPhaseDelay);
-                    byte[] out = ("phase" + pDelay.toString()).getBytes();
-                    mConnectedServerThread[i].write(out);
-                } else {
-                    Long pDelay = ((long) mPhaseDelay - delay);
-                    byte[] out = ("phase" + pDelay.toString()).getBytes();
-                    mConnectedServerThread[i].write(out);
-                }
+    /**
+     * Change the output gain of every peer at the same moment.
+     *
+     * @param gain Linear gain, 1 is full scale
+     */
+    public void writeGain(float gain) {
+        synchronized (mCommandBuffer) {
+            mCommandBuffer.clear();
+            ArrayProtocol.encodeGain(mCommandBuffer, mSequence.getAndIncrement(),
+                    System.nanoTime() + getCommandLead(), gain);
+            writeCommandBuffer();
+        }
+    }
 
-            } else {
-                Long pDelay = (long) mPhaseDelay;
-                byte[] out = ("phase" + pDelay.toString()).getBytes();
-                mConnectedServerThread[i].write(out);
+    /**
+     * Upload a steering trajectory once. Every peer glides its delay through the keyframes
+     * on its own, frame by frame, with no further commands.
+     *
+     * @param offsets Time of each keyframe after the trajectory starts, in nanoseconds,
+     *                increasing
+     * @param angles  Angle from the array's x axis at each keyframe
+     * @return the group owner's {@link System#nanoTime()} the trajectory starts at
+     */
+    public long writeTrajectory(long[] offsets, double[] angles, int count) {
+        if (count > MAX_KEYFRAMES) {
+            throw new IllegalArgumentException("At most " + MAX_KEYFRAMES + " keyframes");
+        }
+        synchronized (mCommandBuffer) {
+            long start = System.nanoTime() + getCommandLead();
+            mFocusDelays = null;
+            for (int i = 0; i < count; i++) {
+                mSteeringTable.getDelays(angles[i], mSteerDelays);
+                mCommandBuffer.clear();
+                ArrayProtocol.encodeKeyframe(mCommandBuffer, mSequence.getAndIncrement(),
+                        start + offsets[i], mSteerDelays, ArrayProtocol.STEER_SLOTS);
+                writeCommandBuffer();
             }
+            return start;
         }
     }
 
+    /**
+     * Sweep the beam from one angle to another at a constant angular speed.
+     *
+     * @return the group owner's {@link System#nanoTime()} the sweep starts at
+     */
+    public long writeSweep(double fromAngle, double toAngle, long durationNanos) {
+        long[] offsets = new long[MAX_KEYFRAMES];
+        double[] angles = new double[MAX_KEYFRAMES];
+        int count = SteeringTable.planSweep(fromAngle, toAngle, durationNanos, MAX_KEYFRAMES,
+                offsets, angles);
+        return writeTrajectory(offsets, angles, count);
+    }
+
+    // Caller holds the command buffer's lock
+    private void sendSteer() {
+        mFocusDelays = null;
+        computeWeights();
+        mCommandBuffer.clear();
+        ArrayProtocol.encodeSteer(mCommandBuffer, mSequence.getAndIncrement(),
+                System.nanoTime() + getCommandLead(), mSteerDelays, mSteerWeights,
+                ArrayProtocol.STEER_SLOTS);
+        writeCommandBuffer();
+    }
 
-    public void writeLaglessServer(byte[] out) {
-        for (int i = 0; i < mStreams; i++) {
-            mConnectedServerThread[i].write(out);
+    // Taper the speakers in slots, in order along the x axis. Caller holds the command
+    // buffer's lock.
+    private void computeWeights() {
+        for (int i = 0; i < ArrayProtocol.STEER_SLOTS; i++) {
+            mSteerWeights[i] = 1;
+        }
+        ArrayServer server = mServer;
+        if (server == null || mTaper == Taper.UNIFORM) {
+            return;
+        }
+        int count = 0;
+        for (int slot = 0; slot < ArrayProtocol.STEER_SLOTS; slot++) {
+            if (!isSlotTaken(server, slot)) {
+                continue;
+            }
+            // Insertion sort by position, there are only a few
+            int i = count++;
+            while (i > 0 && mBeamformer.getX(mTaperSlots[i - 1]) > mBeamformer.getX(slot)) {
+                mTaperSlots[i] = mTaperSlots[i - 1];
+                i--;
+            }
+            mTaperSlots[i] = slot;
+        }
+        Taper.window(mTaper, count, mSidelobeDb, mTaperWeights);
+        for (int i = 0; i < count; i++) {
+            mSteerWeights[mTaperSlots[i]] = (float) mTaperWeights[i];
         }
     }
 
     public void writeSynch() {
-        // Create temporary object
-        for (int i = 0; i < mStreams; i++) {
-            mConnectedServerThread[i].write("synch".getBytes());
+        synchronized (mCommandBuffer) {
+            mCommandBuffer.clear();
+            ArrayProtocol.encodeSynch(mCommandBuffer, mSequence.getAndIncrement());
+            writeCommandBuffer();
+        }
+    }
+
+    // Send the frame in mCommandBuffer to every peer, caller holds the buffer's lock
+    private void writeCommandBuffer() {
+        CommandChannel channel = mCommandChannel;
+        if (channel != null) {
+            try {
+                channel.send(mCommandBuffer.getInt(ArrayProtocol.LENGTH_SIZE + 2),
+                        mCommandBuffer.array(), 0, mCommandBuffer.position());
+                return;
+            } catch (IOException e) {
+                Log.e(TAG, "Command broadcast failed, sending over TCP", e);
+            }
+        }
+        writeLaglessServer(mCommandBuffer.array(), 0, mCommandBuffer.position());
+    }
+
+    public void writeLaglessServer(byte[] out, int offset, int length) {
+        ArrayServer server = mServer;
+        if (server != null && server.broadcast(out, offset, length) < server.getPeerCount()) {
+            Log.w(TAG, "Command not queued for every peer");
         }
     }
 
@@ -426,8 +1010,7 @@ public class WiFiDirectService {
         public void run() {
             Log.i(TAG, "BEGIN mConnectedThread");
 
-            byte[] buffer = new byte[32];
-            int bytes;
+            FrameReader reader = new FrameReader();
             if (mState != STATE_CONNECTED) {
                 setState(STATE_CONNECTED);
             }
@@ -436,17 +1019,19 @@ public class WiFiDirectService {
             while (mState == STATE_CONNECTED) {
                 try {
                     // Read from the InputStream
-                    bytes = mmInStream.read(buffer);
+                    if (reader.fill(mmInStream) < 0) {
+                        throw new IOException("Stream closed");
+                    }
                     long mRTime = System.nanoTime();
-                    // Send the obtained bytes to the UI Activity
+                    // Send the obtained frames to the UI Activity
                     synchronized (this) {
                         mHandler.obtainMessage(Constants.TIMESTAMP, 1, -1, mRTime)
                                 .sendToTarget();
-                        mHandler.obtainMessage(Constants.MESSAGE_READ, bytes, -1, buffer)
-                                .sendToTarget();
+                        reader.drain(mFrameHandoff);
                     }
                 } catch (IOException e) {
-                    Log.e(TAG, "disconnected", e);
+                    Log.e(TAG, "disconnected, " + reader + ", " + mReadBuffers.getWaits()
+                            + " waits for a read buffer", e);
                     connectionLost();
                     break;
                 }
@@ -465,119 +1050,4 @@ public class WiFiDirectService {
         }
     }
 
-    private void mConnectServerStreams() {
-        Log.d(TAG, "create ConnectedServerThread");
-        InputStream tmpIn = null;
-        OutputStream tmpOut = null;
-        ServerSocket socket;
-        Socket client;
-
-        // Get the BluetoothSocket input and output streams
-        try {
-            socket = new ServerSocket(Constants.SERVER_PORT);
-            client = socket.accept();
-            tmpIn = client.getInputStream();
-            tmpOut = client.getOutputStream();
-        } catch (IOException e) {
-            Log.e(TAG, "temp sockets not created", e);
-        }
-
-        mInStream[mStreams] = tmpIn;
-        mOutStream[mStreams] = tmpOut;
-        mConnectedServerThread[mStreams] = new ConnectedServerThread(mInStream[mStreams],
-                mOutStream[mStreams]);
-        mStreams++;
-
-    }
-
-    private class ConnectedServerThread extends Thread {
-        private final InputStream mmInStream;
-        private final OutputStream mmOutStream;
-
-        public ConnectedServerThread(InputStream input, OutputStream output) {
-            Log.d(TAG, "create ConnectedServerThread");
-            mmInStream = input;
-            mmOutStream = output;
-
-        }
-
-        public void run() {
-            Log.i(TAG, "BEGIN mConnectedThread");
-
-            byte[] buffer = new byte[32];
-            int bytes;
-
-            // Keep listening to the InputStream while connected
-            while (mState == STATE_CONNECTED_SERVER || mState == STATE_LISTEN) {
-                try {
-                    // Read from the InputStream
-                    bytes = mmInStream.read(buffer);
-                    long mRTime = System.nanoTime();
-                    writeSynchStream(mmOutStream, mRTime, buffer, bytes);
-
-                } catch (IOException e) {
-                    Log.e(TAG, "disconnected", e);
-                    connectionLost();
-                    break;
-                }
-            }
-
-        }
-
-        /**
-         * Write to the connected OutStream.
-         *
-         * @param buffer The bytes to write
-         */
-        public void write(byte[] buffer) {
-
-                try {
-                    mmOutStream.write(buffer);
-
-                    // Share the sent message back to the UI Activity
-                    mHandler.obtainMessage(Constants.MESSAGE_WRITE, -1, -1, buffer)
-                            .sendToTarget();
-                } catch (IOException e) {
-                    Log.e(TAG, "Exception during write", e);
-                }
-
-
-
-        }
-
-
-    }
-    public void writeSynchStream(OutputStream output, long timestamp, byte[] buffer, int bytes) {
-
-        ByteBuffer longBuffer = ByteBuffer.allocate(Long.SIZE / 4 + 2);
-        longBuffer.putLong(timestamp);
-        String ping = new String(buffer, 0, bytes);
-        if (ping.contains("pingpingy")) {
-            try {
-                String[] split = ping.replace("pingpingy", "").split("X");
-                String pString = "X" + split[0] + "X" + split[1];
-                longBuffer.putLong(System.nanoTime());
-                longBuffer.put(pString.getBytes());
-
-                output.write(longBuffer.array());
-
-                // Share the sent message back to the UI Activity
-                mHandler.obtainMessage(Constants.MESSAGE_WRITE, -1, -1, buffer)
-                        .sendToTarget();
-            } catch (IOException e) {
-                Log.e(TAG, "Exception during write", e);
-            }
-
-        }
-
-
-    }
-
-
-
-
-
 }
-
-
-
@@ -0,0 +1,54 @@
+#ifndef Header_CommandRing
+#define Header_CommandRing
+
+#include <atomic>
+
+enum AudioCommandType {
+    AUDIO_COMMAND_START = 1,    // time: sample to start on, 0 for the next buffer
+    AUDIO_COMMAND_STOP,         // stop at the start of the next buffer
+    AUDIO_COMMAND_GAIN,         // value: linear gain
+    AUDIO_COMMAND_DELAY,        // value: output delay in samples
+    AUDIO_COMMAND_KEYFRAME,     // time: when the delay is reached, value: delay in samples
+    AUDIO_COMMAND_WEIGHT,       // value: linear taper weight
+};
+
+struct AudioCommand {
+    int type;
+    long long time;             // CLOCK_MONOTONIC nanoseconds
+    double value;
+};
+
+// Single producer, single consumer ring. The producer is the Java thread calling the natives,
+// the consumer the audio callback. Neither side ever locks or waits.
+template <typename T, unsigned int Size>
+class CommandRing {
+public:
+    CommandRing() : head(0), tail(0) {
+        static_assert((Size & (Size - 1)) == 0, "Size must be a power of two");
+    }
+
+    // Producer only. Returns false when the ring is full.
+    bool push(const T &item) {
+        unsigned int t = tail.load(std::memory_order_relaxed);
+        if (t - head.load(std::memory_order_acquire) == Size) return false;
+        slots[t & (Size - 1)] = item;
+        tail.store(t + 1, std::memory_order_release);
+        return true;
+    }
+
+    // Consumer only. Returns false when the ring is empty.
+    bool pop(T &item) {
+        unsigned int h = head.load(std::memory_order_relaxed);
+        if (tail.load(std::memory_order_acquire) == h) return false;
+        item = slots[h & (Size - 1)];
+        head.store(h + 1, std::memory_order_release);
+        return true;
+    }
+
+private:
+    std::atomic<unsigned int> head;
+    std::atomic<unsigned int> tail;
+    T slots[Size];
+};
+
+#endif
@@ -2,6 +2,11 @@
 #include <SuperpoweredSimple.h>
 #include <jni.h>
 #include <stdio.h>
+#include <stdlib.h>
+#include <malloc.h>
+#include <string.h>
+#include <assert.h>
+#include <time.h>
 #include <android/log.h>
 #include <SLES/OpenSLES.h>
 #include <SLES/OpenSLES_AndroidConfiguration.h>
@@ -14,56 +19,412 @@ static void playerEventCallback(void *clientData, SuperpoweredAdvancedAudioPlaye
 }
 
 
+// The linker routes every allocation in this library through these, Superpowered and the
+// static C++ runtime's operator new included (see -Wl,--wrap in build.gradle). Debug builds
+// count the ones made inside process(), which must stay at zero: the allocator may lock and
+// block the real-time audio thread. Allocations inside system libraries are not seen.
+extern "C" {
+void *__real_malloc(size_t size);
+void *__real_calloc(size_t count, size_t size);
+void *__real_realloc(void *memory, size_t size);
+void *__real_memalign(size_t alignment, size_t size);
+int __real_posix_memalign(void **memory, size_t alignment, size_t size);
+}
+
+#ifndef NDEBUG
+static __thread bool inAudioCallback = false;
+static std::atomic<unsigned int> callbackAllocations(0);
+#define COUNT_ALLOCATION() if (inAudioCallback) callbackAllocations++
+#else
+#define COUNT_ALLOCATION()
+#endif
+
+extern "C" {
+void *__wrap_malloc(size_t size) {
+    COUNT_ALLOCATION();
+    return __real_malloc(size);
+}
+
+void *__wrap_calloc(size_t count, size_t size) {
+    COUNT_ALLOCATION();
+    return __real_calloc(count, size);
+}
+
+void *__wrap_realloc(void *memory, size_t size) {
+    COUNT_ALLOCATION();
+    return __real_realloc(memory, size);
+}
+
+void *__wrap_memalign(size_t alignment, size_t size) {
+    COUNT_ALLOCATION();
+    return __real_memalign(alignment, size);
+}
+
+int __wrap_posix_memalign(void **memory, size_t alignment, size_t size) {
+    COUNT_ALLOCATION();
+    return __real_posix_memalign(memory, alignment, size);
+}
+}
+
+// How fast the buffer clock follows the callback times, small to filter callback jitter.
+#define CLOCK_SMOOTHING 0.05
+
+// Longest output delay, comfortably more than sound takes across any array.
+#define MAX_DELAY_MS 100
+// Delay changes are crossfaded over this long, short enough to follow steering, long enough
+// not to click.
+#define CROSSFADE_MS 5
+// Time constant of taper weight changes, matched to the delay crossfade.
+#define WEIGHT_SMOOTHING_MS 5
+
+// Same clock as System.nanoTime().
+static long long monotonicNanos() {
+    struct timespec now;
+    clock_gettime(CLOCK_MONOTONIC, &now);
+    return (long long)now.tv_sec * 1000000000LL + now.tv_nsec;
+}
+
 static bool audioProcessing(void *clientdata, short int *audioIO, int numberOfSamples, int __unused samplerate) {
 	return ((SuperpoweredPlayer *)clientdata)->process(audioIO, (unsigned int)numberOfSamples);
 }
 
-SuperpoweredPlayer::SuperpoweredPlayer(unsigned int samplerate, unsigned int buffersize, const char *path, int fileOffset, int fileLength) : vol(1.0f * headroom) {
-    //stereoBuffer = (float *)memalign(16, (buffersize + 16) * sizeof(float) * 2);
+SuperpoweredPlayer::SuperpoweredPlayer(unsigned int samplerate, unsigned int buffersize, const char *path, int fileOffset, int fileLength) : vol(1.0f * headroom), samplerate(samplerate), hasPendingStart(false), pendingStart(0), lastStartTime(0), bufferStartNanos(0) {
+    // The audio path never allocates, everything it needs is sized from buffersize here.
+    bufferFrames = buffersize;
+    stereoBuffer = (float *)memalign(16, (buffersize + 16) * sizeof(float) * 2);
+
+    unsigned int delayFrames = 1;
+    while (delayFrames < samplerate * MAX_DELAY_MS / 1000) delayFrames <<= 1;
+    delayLine = (float *)memalign(16, delayFrames * sizeof(float) * 2);
+    memset(delayLine, 0, delayFrames * sizeof(float) * 2);
+    delayMask = delayFrames - 1;
+    writePosition = delay = previousDelay = 0;
+    crossfadeFrames = samplerate * CROSSFADE_MS / 1000;
+
+    // Taps sit at 0..3 samples behind the whole part of the delay and interpolate at 1 + the
+    // fraction, the flattest region of a cubic. That adds one sample to every delay, the same
+    // on every device, so steering is unaffected.
+    for (int phase = 0; phase < DELAY_PHASES; phase++) {
+        double at = 1.0 + (double)phase / DELAY_PHASES;
+        for (int k = 0; k < DELAY_TAPS; k++) {
+            double tap = 1.0;
+            for (int j = 0; j < DELAY_TAPS; j++) if (j != k) tap *= (at - j) / (k - j);
+            fractionTaps[phase][k] = (float)tap;
+        };
+    };
+    crossfadePosition = crossfadeFrames;
+    hasPendingDelay = false;
+    silentFrames = delayFrames;
+    keyframes = keyframe = 0;
+    followingTrajectory = false;
+    weight = targetWeight = 1.0f;
+    weightSmoothing = 1.0f - expf(-1000.0f / (samplerate * WEIGHT_SMOOTHING_MS));
 
     player = new SuperpoweredAdvancedAudioPlayer(&player , playerEventCallback, samplerate, 1);
     player->open(path, fileOffset, fileLength);
     player->cachePosition(0, 255);
 
-    audioSystem = new SuperpoweredAndroidAudioIO(samplerate, buffersize, false, true, audioProcessing, this, -1, SL_ANDROID_STREAM_MEDIA, buffersize * 2);
+    // A rendered buffer is heard after the output queue in front of it has played.
+    unsigned int latencySamples = buffersize * 2;
+    latencyNanos = latencySamples * 1000000000.0 / samplerate;
+    audioSystem = new SuperpoweredAndroidAudioIO(samplerate, buffersize, false, true, audioProcessing, this, -1, SL_ANDROID_STREAM_MEDIA, latencySamples);
 }
 
 SuperpoweredPlayer::~SuperpoweredPlayer() {
     delete audioSystem;
     delete player;
     free(stereoBuffer);
+    free(delayLine);
+}
+
+// The control calls below only queue commands, they return false when the queue is full.
+
+bool SuperpoweredPlayer::onPlayPause(bool play) {
+    if (play) return scheduleStart(0);
+    AudioCommand command = { AUDIO_COMMAND_STOP, 0, 0 };
+    return commands.push(command);
+}
+
+bool SuperpoweredPlayer::setGain(float gain) {
+    AudioCommand command = { AUDIO_COMMAND_GAIN, 0, gain };
+    return commands.push(command);
+}
+
+// Move the output by a number of samples while playing, crossfading from the old position.
+bool SuperpoweredPlayer::setDelaySamples(double samples) {
+    AudioCommand command = { AUDIO_COMMAND_DELAY, 0, samples };
+    return commands.push(command);
+}
+
+// Reach a delay in samples at frameTimeNanos, moving to it linearly from the previous
+// keyframe. Keyframes must come in time order, an earlier one starts a new trajectory.
+bool SuperpoweredPlayer::addKeyframe(long long frameTimeNanos, double samples) {
+    AudioCommand command = { AUDIO_COMMAND_KEYFRAME, frameTimeNanos, samples };
+    return commands.push(command);
 }
 
-void SuperpoweredPlayer::onPlayPause(bool play) {
-    if (!play) {
-        player->setPosition(0, true, false);
-    } else {
-        player->play(false);
-        player->loop(0, 1000, false, 255, false);
+// Scale the output by this speaker's taper weight, on top of the gain.
+bool SuperpoweredPlayer::setWeight(float taperWeight) {
+    AudioCommand command = { AUDIO_COMMAND_WEIGHT, 0, taperWeight };
+    return commands.push(command);
+}
+
+// Start playback on the sample heard at frameTimeNanos. Must be called at least a couple of
+// buffers ahead, the audio thread picks the start up in the buffer it falls into.
+bool SuperpoweredPlayer::scheduleStart(long long frameTimeNanos) {
+    lastStartTime.store(0);
+    AudioCommand command = { AUDIO_COMMAND_START, frameTimeNanos, 0 };
+    return commands.push(command);
+}
+
+// Return the time the last scheduled start was heard, 0 while it is pending.
+long long SuperpoweredPlayer::getStartTime() {
+    return lastStartTime.load();
+}
+
+// Apply every queued control change, in order. Audio thread only.
+void SuperpoweredPlayer::drainCommands() {
+    AudioCommand command;
+    while (commands.pop(command)) {
+        switch (command.type) {
+            case AUDIO_COMMAND_START:
+                hasPendingStart = true;
+                pendingStart = command.time;
+                break;
+            case AUDIO_COMMAND_STOP:
+                // A stop also cancels a start that has not landed yet.
+                hasPendingStart = false;
+                player->setPosition(0, true, false);
+                break;
+            case AUDIO_COMMAND_GAIN:
+                vol = (float)command.value * headroom;
+                break;
+            case AUDIO_COMMAND_DELAY:
+                // Replaces any trajectory. A change during a crossfade waits for it to finish,
+                // restarting it would drop the blend being played with a step; only the
+                // latest of several waiting changes is kept.
+                keyframes = 0;
+                followingTrajectory = false;
+                if (crossfadePosition < crossfadeFrames) {
+                    pendingDelay = toPhases(command.value);
+                    hasPendingDelay = true;
+                } else startCrossfade(toPhases(command.value));
+                break;
+            case AUDIO_COMMAND_KEYFRAME:
+                // A trajectory supersedes a delay still waiting.
+                hasPendingDelay = false;
+                addKeyframeNow(command.time, command.value);
+                break;
+            case AUDIO_COMMAND_WEIGHT:
+                targetWeight = (float)command.value;
+                break;
+        };
     };
 }
 
+// Fade from the current delay to a new one. Never called while a crossfade is running.
+void SuperpoweredPlayer::startCrossfade(unsigned int phases) {
+    previousDelay = delay;
+    delay = phases;
+    crossfadePosition = previousDelay == delay ? crossfadeFrames : 0;
+}
 
-bool SuperpoweredPlayer::process(short int *output, unsigned int numberOfSamples) {
+// Convert a delay in samples to the delay line's fixed point, clamped to what it holds.
+unsigned int SuperpoweredPlayer::toPhases(double samples) {
+    double phases = samples * DELAY_PHASES + 0.5;
+    double maxPhases = (double)(delayMask - DELAY_TAPS + 1) * DELAY_PHASES - 1;
+    if (phases < 0) phases = 0;
+    if (phases > maxPhases) phases = maxPhases;
+    return (unsigned int)phases;
+}
 
-    stereoBuffer = (float *)malloc(numberOfSamples * 8 + 256);
-    bool silence = !player->process(stereoBuffer, false, numberOfSamples, vol, 0.0f, -1.0);
+void SuperpoweredPlayer::addKeyframeNow(long long time, double samples) {
+    if (keyframes > 0 && time <= keyframeTimes[keyframes - 1]) {
+        keyframes = 0;
+        followingTrajectory = false;
+    };
+    if (keyframes == TRAJECTORY_SIZE && keyframe > 0) {
+        // Make room by forgetting keyframes already passed.
+        keyframes -= keyframe;
+        memmove(keyframeTimes, keyframeTimes + keyframe, keyframes * sizeof(long long));
+        memmove(keyframeDelays, keyframeDelays + keyframe, keyframes * sizeof(double));
+        keyframe = 0;
+    };
+    if (keyframes == TRAJECTORY_SIZE) return;
+    if (keyframes == 0) keyframe = 0;
+    keyframeTimes[keyframes] = time;
+    keyframeDelays[keyframes] = samples;
+    keyframes++;
+}
+
+// Move the delay along the trajectory to the frame heard at frameNanos.
+void SuperpoweredPlayer::followTrajectory(double frameNanos) {
+    if (frameNanos < keyframeTimes[0]) return;
+    while (keyframe + 1 < keyframes && frameNanos >= keyframeTimes[keyframe + 1]) keyframe++;
+
+    double samples = keyframeDelays[keyframe];
+    if (keyframe + 1 < keyframes) {
+        double t = (frameNanos - keyframeTimes[keyframe]) / (keyframeTimes[keyframe + 1] - keyframeTimes[keyframe]);
+        samples += (keyframeDelays[keyframe + 1] - samples) * t;
+    };
+    unsigned int phases = toPhases(samples);
+    if (!followingTrajectory) {
+        // Jump onto the trajectory through the usual crossfade, then glide without one.
+        followingTrajectory = true;
+        startCrossfade(phases);
+    } else delay = phases;
+    if (keyframe + 1 == keyframes) {
+        // Reached the last keyframe, hold its delay.
+        keyframes = 0;
+        followingTrajectory = false;
+    };
+}
+
+bool SuperpoweredPlayer::process(short int *output, unsigned int numberOfSamples) {
+#ifndef NDEBUG
+    inAudioCallback = true;
+#endif
+    bool playing = render(numberOfSamples);
 
     // The stereoBuffer is ready now, let's put the finished audio into the requested buffers.
-    if (!silence) SuperpoweredFloatToShortInt(stereoBuffer, output, numberOfSamples);
-    return !silence;
+    if (playing) SuperpoweredFloatToShortInt(stereoBuffer, output, numberOfSamples);
+#ifndef NDEBUG
+    inAudioCallback = false;
+    assert(callbackAllocations.load() == 0);
+#endif
+    return playing;
+}
+
+// Fill stereoBuffer with the next numberOfSamples frames. Returns false for silence.
+bool SuperpoweredPlayer::render(unsigned int numberOfSamples) {
+    if (numberOfSamples > bufferFrames) {
+        // More than was preallocated for, output silence rather than allocate.
+        __android_log_print(ANDROID_LOG_ERROR, "SuperpoweredPlayer", "Callback of %u frames, buffer holds %u", numberOfSamples, bufferFrames);
+        return false;
+    };
+    drainCommands();
+
+    // Follow the time this buffer is heard at. Callbacks jitter, so the prediction from the
+    // previous buffer is only pulled towards the measurement, unless it is off by a whole
+    // buffer after an underrun or on the first callback.
+    double period = numberOfSamples * 1000000000.0 / samplerate;
+    double measured = monotonicNanos() + latencyNanos;
+    double error = measured - bufferStartNanos;
+    if (bufferStartNanos == 0 || fabs(error) > period) bufferStartNanos = measured;
+    else bufferStartNanos += error * CLOCK_SMOOTHING;
+
+    // Land a pending start on its exact sample inside this buffer, silence before it.
+    unsigned int offset = 0;
+    if (hasPendingStart) {
+        double frames = (pendingStart - bufferStartNanos) * samplerate / 1000000000.0;
+        if (frames < numberOfSamples) {
+            hasPendingStart = false;
+            offset = frames <= 0 ? 0 : (unsigned int)(frames + 0.5);
+            if (offset >= numberOfSamples) offset = numberOfSamples - 1;
+            player->play(false);
+            player->loop(0, 1000, false, 255, false);
+            lastStartTime.store((long long)(bufferStartNanos + offset * 1000000000.0 / samplerate));
+        };
+    };
+    double startNanos = bufferStartNanos;
+    bufferStartNanos += period;
+
+    bool silence = !player->process(stereoBuffer, false, numberOfSamples - offset, vol, 0.0f, -1.0);
+    if (!silence && offset > 0) {
+        // Rendered at the aligned start of the buffer, move it behind the leading silence.
+        memmove(stereoBuffer + offset * 2, stereoBuffer, (numberOfSamples - offset) * 2 * sizeof(float));
+        memset(stereoBuffer, 0, offset * 2 * sizeof(float));
+    };
+
+    // Keep feeding the delay line through silence so delayed sound plays out.
+    if (silence) {
+        memset(stereoBuffer, 0, numberOfSamples * 2 * sizeof(float));
+        if (silentFrames <= delayMask) silentFrames += numberOfSamples;
+    } else silentFrames = 0;
+    applyDelay(numberOfSamples, startNanos);
+    return silentFrames <= delayMask;
+}
+
+// Interpolate the frame phases/DELAY_PHASES samples behind the one just written.
+inline void SuperpoweredPlayer::readDelayed(unsigned int phases, float *left, float *right) {
+    const float *taps = fractionTaps[phases & (DELAY_PHASES - 1)];
+    unsigned int read = writePosition - (phases >> DELAY_PHASE_BITS);
+    float l = 0.0f, r = 0.0f;
+    for (int k = 0; k < DELAY_TAPS; k++) {
+        unsigned int frame = ((read - k) & delayMask) * 2;
+        l += taps[k] * delayLine[frame];
+        r += taps[k] * delayLine[frame + 1];
+    };
+    *left = l;
+    *right = r;
+}
+
+// Pass stereoBuffer through the delay line in place, its first frame heard at startNanos.
+void SuperpoweredPlayer::applyDelay(unsigned int numberOfSamples, double startNanos) {
+    float *buffer = stereoBuffer;
+    double frameNanos = 1000000000.0 / samplerate;
+    for (unsigned int n = 0; n < numberOfSamples; n++, buffer += 2) {
+        if (crossfadePosition == crossfadeFrames && hasPendingDelay) {
+            hasPendingDelay = false;
+            startCrossfade(pendingDelay);
+        };
+        // A trajectory is joined once any crossfade is over, gliding on through its own.
+        if (keyframes > 0 && (followingTrajectory || crossfadePosition == crossfadeFrames)) followTrajectory(startNanos + n * frameNanos);
+
+        unsigned int write = (writePosition & delayMask) * 2;
+        delayLine[write] = buffer[0];
+        delayLine[write + 1] = buffer[1];
+
+        float left, right;
+        readDelayed(delay, &left, &right);
+        if (crossfadePosition < crossfadeFrames) {
+            float oldLeft, oldRight;
+            readDelayed(previousDelay, &oldLeft, &oldRight);
+            float in = (float)crossfadePosition / crossfadeFrames, out = 1.0f - in;
+            left = oldLeft * out + left * in;
+            right = oldRight * out + right * in;
+            crossfadePosition++;
+        };
+        weight += (targetWeight - weight) * weightSmoothing;
+        buffer[0] = left * weight;
+        buffer[1] = right * weight;
+        writePosition++;
+    };
 }
 
 static SuperpoweredPlayer *example = NULL;
 
-extern "C" JNIEXPORT void Java_com_example_android_bluetoothchat_PhasedArrayFragment_SuperpoweredPlayer(JNIEnv *javaEnvironment, jobject __unused obj, jint samplerate, jint buffersize, jstring apkPath, jint fileOffset, jint fileLength, jint fileBoffset, jint fileBlength) {
+extern "C" JNIEXPORT void Java_com_example_android_phasedarray_PhasedArrayFragment_SuperpoweredPlayer(JNIEnv *javaEnvironment, jobject __unused obj, jint samplerate, jint buffersize, jstring apkPath, jint fileOffset, jint fileLength, jint fileBoffset, jint fileBlength) {
     const char *path = javaEnvironment->GetStringUTFChars(apkPath, JNI_FALSE);
     example = new SuperpoweredPlayer((unsigned int)samplerate, (unsigned int)buffersize, path, fileOffset, fileLength);
     javaEnvironment->ReleaseStringUTFChars(apkPath, path);
 
 }
 
-extern "C" JNIEXPORT void Java_com_example_android_bluetoothchat_PhasedArrayFragment_onPlayPause(JNIEnv * __unused javaEnvironment, jobject __unused obj, jboolean play) {
-	example->onPlayPause(play);
+extern "C" JNIEXPORT void Java_com_example_android_phasedarray_PhasedArrayFragment_onPlayPause(JNIEnv * __unused javaEnvironment, jobject __unused obj, jboolean play) {
+	if (!example->onPlayPause(play)) __android_log_print(ANDROID_LOG_WARN, "SuperpoweredPlayer", "Command queue full, play/pause dropped");
+}
+
+extern "C" JNIEXPORT void Java_com_example_android_phasedarray_PhasedArrayFragment_setGain(JNIEnv * __unused javaEnvironment, jobject __unused obj, jfloat gain) {
+	if (!example->setGain(gain)) __android_log_print(ANDROID_LOG_WARN, "SuperpoweredPlayer", "Command queue full, gain dropped");
 }
 
+extern "C" JNIEXPORT void Java_com_example_android_phasedarray_PhasedArrayFragment_scheduleStart(JNIEnv * __unused javaEnvironment, jobject __unused obj, jlong frameTimeNanos) {
+	if (!example->scheduleStart(frameTimeNanos)) __android_log_print(ANDROID_LOG_WARN, "SuperpoweredPlayer", "Command queue full, start dropped");
+}
+
+extern "C" JNIEXPORT jlong Java_com_example_android_phasedarray_PhasedArrayFragment_getStartTime(JNIEnv * __unused javaEnvironment, jobject __unused obj) {
+	return example->getStartTime();
+}
+
+extern "C" JNIEXPORT void Java_com_example_android_phasedarray_PhasedArrayFragment_setDelaySamples(JNIEnv * __unused javaEnvironment, jobject __unused obj, jdouble samples) {
+	if (!example->setDelaySamples(samples)) __android_log_print(ANDROID_LOG_WARN, "SuperpoweredPlayer", "Command queue full, delay dropped");
+}
+
+extern "C" JNIEXPORT void Java_com_example_android_phasedarray_PhasedArrayFragment_addKeyframe(JNIEnv * __unused javaEnvironment, jobject __unused obj, jlong frameTimeNanos, jdouble samples) {
+	if (!example->addKeyframe(frameTimeNanos, samples)) __android_log_print(ANDROID_LOG_WARN, "SuperpoweredPlayer", "Command queue full, keyframe dropped");
+}
+
+extern "C" JNIEXPORT void Java_com_example_android_phasedarray_PhasedArrayFragment_setWeight(JNIEnv * __unused javaEnvironment, jobject __unused obj, jfloat weight) {
+	if (!example->setWeight(weight)) __android_log_print(ANDROID_LOG_WARN, "SuperpoweredPlayer", "Command queue full, weight dropped");
+}
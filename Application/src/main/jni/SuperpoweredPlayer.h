@@ -3,14 +3,24 @@
 
 #include <math.h>
 #include <pthread.h>
+#include <atomic>
 
 #include "SuperpoweredPlayer.h"
+#include "CommandRing.h"
 #include <SuperpoweredAdvancedAudioPlayer.h>
 #include <AndroidIO/SuperpoweredAndroidAudioIO.h>
 
 #define HEADROOM_DECIBEL 3.0f
 static const float headroom = powf(10.0f, -HEADROOM_DECIBEL * 0.025f);
 
+// Delays are resolved to 1/DELAY_PHASES of a sample, about 0.09 us at 44.1 kHz.
+#define DELAY_PHASE_BITS 8
+#define DELAY_PHASES (1 << DELAY_PHASE_BITS)
+#define DELAY_TAPS 4
+
+// Keyframes of a delay trajectory held at once.
+#define TRAJECTORY_SIZE 64
+
 class SuperpoweredPlayer {
 public:
 
@@ -18,13 +28,74 @@ public:
 	~SuperpoweredPlayer();
 
 	bool process(short int *output, unsigned int numberOfSamples);
-	void onPlayPause(bool play);
+
+	// Control, called from a single Java thread. Changes are queued for the audio thread.
+	bool onPlayPause(bool play);
+	bool setGain(float gain);
+	bool setDelaySamples(double samples);
+	bool addKeyframe(long long frameTimeNanos, double samples);
+	bool setWeight(float taperWeight);
+	bool scheduleStart(long long frameTimeNanos);
+	long long getStartTime();
 
 private:
     SuperpoweredAndroidAudioIO *audioSystem;
     SuperpoweredAdvancedAudioPlayer *player;
+    // Interleaved stereo output, allocated once for buffersize frames.
     float *stereoBuffer;
+    unsigned int bufferFrames;
     float vol;
+    unsigned int samplerate;
+
+    // Output delay line, interleaved stereo, a power of two frames long. Audio thread only.
+    float *delayLine;
+    unsigned int delayMask;
+    unsigned int writePosition;
+    // Delays in 1/DELAY_PHASES samples.
+    unsigned int delay;
+    // Delay being faded out after a change, and progress of that crossfade in frames.
+    unsigned int previousDelay;
+    unsigned int crossfadeFrames;
+    unsigned int crossfadePosition;
+    // Delay change that arrived during a crossfade, started when that one ends.
+    unsigned int pendingDelay;
+    bool hasPendingDelay;
+    void startCrossfade(unsigned int phases);
+    // Frames of silence fed into the delay line since the player last produced sound.
+    unsigned int silentFrames;
+    // Cubic Lagrange interpolator for every fractional phase.
+    float fractionTaps[DELAY_PHASES][DELAY_TAPS];
+    unsigned int toPhases(double samples);
+    void applyDelay(unsigned int numberOfSamples, double startNanos);
+
+    // Taper weight of this speaker, moved towards the target a little every frame.
+    float weight;
+    float targetWeight;
+    float weightSmoothing;
+
+    // Delay trajectory, linear between keyframes, followed frame by frame. Audio thread only.
+    long long keyframeTimes[TRAJECTORY_SIZE];
+    double keyframeDelays[TRAJECTORY_SIZE];
+    unsigned int keyframes;
+    unsigned int keyframe;
+    bool followingTrajectory;
+    void addKeyframeNow(long long time, double samples);
+    void followTrajectory(double frameNanos);
+    void readDelayed(unsigned int phases, float *left, float *right);
+
+    // Control changes from Java, drained at the start of every buffer.
+    CommandRing<AudioCommand, 64> commands;
+    void drainCommands();
+    bool render(unsigned int numberOfSamples);
+
+    // Start waiting for its buffer, a CLOCK_MONOTONIC time. Audio thread only.
+    bool hasPendingStart;
+    long long pendingStart;
+    // Time the last scheduled start landed on, 0 while it is pending.
+    std::atomic<long long> lastStartTime;
+    // Estimated time the first sample of the buffer being rendered is heard. Audio thread only.
+    double bufferStartNanos;
+    double latencyNanos;
 };
 
 #endif
@@ -0,0 +1,311 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.phasedarray;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class ArrayProtocolTest {
+
+    private static final int SEQ = 0x12345678;
+    private static final long TIME = 0x0123456789abcdefL;
+
+    private ByteBuffer mBuffer;
+    private ArrayProtocol.Message mMessage;
+
+    @Before
+    public void setUp() {
+        mBuffer = ByteBuffer.allocate(4 * ArrayProtocol.MAX_FRAME_SIZE);
+        mMessage = new ArrayProtocol.Message();
+    }
+
+    // Decode the single frame written to mBuffer, checking its size and header
+    private void decode(byte type) {
+        assertEquals(ArrayProtocol.frameSize(type), mBuffer.position());
+        mBuffer.flip();
+        assertEquals(ArrayProtocol.DECODE_OK, ArrayProtocol.decode(mBuffer, mMessage));
+        assertFalse(mBuffer.hasRemaining());
+        assertEquals(type, mMessage.type);
+        assertEquals(SEQ, mMessage.seq);
+    }
+
+    @Test
+    public void synch() {
+        ArrayProtocol.encodeSynch(mBuffer, SEQ);
+        decode(ArrayProtocol.TYPE_SYNCH);
+    }
+
+    @Test
+    public void stopAndPlay() {
+        ArrayProtocol.encodeStop(mBuffer, SEQ, TIME);
+        decode(ArrayProtocol.TYPE_STOP);
+        assertEquals(TIME, mMessage.time);
+
+        mBuffer.clear();
+        ArrayProtocol.encodePlay(mBuffer, SEQ, TIME + 1);
+        decode(ArrayProtocol.TYPE_PLAY);
+        assertEquals(TIME + 1, mMessage.time);
+    }
+
+    @Test
+    public void phase() {
+        ArrayProtocol.encodePhase(mBuffer, SEQ, TIME, 1234567L);
+        decode(ArrayProtocol.TYPE_PHASE);
+        assertEquals(TIME, mMessage.time);
+        assertEquals(1234567L, mMessage.delay);
+    }
+
+    @Test
+    public void gain() {
+        ArrayProtocol.encodeGain(mBuffer, SEQ, TIME, 0.25f);
+        decode(ArrayProtocol.TYPE_GAIN);
+        assertEquals(TIME, mMessage.time);
+        assertEquals(0.25f, mMessage.gain, 0);
+    }
+
+    @Test
+    public void steer() {
+        int[] delays = new int[ArrayProtocol.STEER_SLOTS];
+        float[] weights = new float[ArrayProtocol.STEER_SLOTS];
+        for (int i = 0; i < delays.length; i++) {
+            delays[i] = 1000 * i + 7;
+            weights[i] = 1f / (i + 1);
+        }
+        ArrayProtocol.encodeSteer(mBuffer, SEQ, TIME, delays, weights, delays.length);
+        decode(ArrayProtocol.TYPE_STEER);
+        assertEquals(TIME, mMessage.time);
+        for (int i = 0; i < delays.length; i++) {
+            assertEquals(delays[i], mMessage.delays[i]);
+            assertEquals(weights[i], mMessage.weights[i], 0);
+        }
+    }
+
+    @Test
+    public void steerPadsUnusedSlots() {
+        ArrayProtocol.encodeSteer(mBuffer, SEQ, TIME, new int[] {5, 6}, new float[] {0.5f, 0.25f},
+                2);
+        decode(ArrayProtocol.TYPE_STEER);
+        assertEquals(6, mMessage.delays[1]);
+        assertEquals(0.25f, mMessage.weights[1], 0);
+        for (int i = 2; i < ArrayProtocol.STEER_SLOTS; i++) {
+            assertEquals(0, mMessage.delays[i]);
+            assertEquals(1f, mMessage.weights[i], 0);
+        }
+    }
+
+    @Test
+    public void keyframe() {
+        int[] delays = new int[ArrayProtocol.STEER_SLOTS];
+        for (int i = 0; i < delays.length; i++) {
+            delays[i] = -i;
+        }
+        ArrayProtocol.encodeKeyframe(mBuffer, SEQ, TIME, delays, delays.length);
+        decode(ArrayProtocol.TYPE_KEYFRAME);
+        assertEquals(TIME, mMessage.time);
+        for (int i = 0; i < delays.length; i++) {
+            assertEquals(delays[i], mMessage.delays[i]);
+        }
+    }
+
+    @Test
+    public void assign() {
+        ArrayProtocol.encodeAssign(mBuffer, SEQ, 11);
+        decode(ArrayProtocol.TYPE_ASSIGN);
+        assertEquals(11, mMessage.slot);
+    }
+
+    @Test
+    public void syncReport() {
+        ArrayProtocol.encodeSyncReport(mBuffer, SEQ, 2000000L, 150000L);
+        decode(ArrayProtocol.TYPE_SYNC_REPORT);
+        assertEquals(2000000L, mMessage.roundTrip);
+        assertEquals(150000L, mMessage.error);
+    }
+
+    @Test
+    public void startAck() {
+        ArrayProtocol.encodeStartAck(mBuffer, SEQ, 42, TIME, -3000L);
+        decode(ArrayProtocol.TYPE_START_ACK);
+        assertEquals(42, mMessage.command);
+        assertEquals(TIME, mMessage.time);
+        assertEquals(-3000L, mMessage.error);
+    }
+
+    @Test
+    public void probe() {
+        ArrayProtocol.encodeProbe(mBuffer, SEQ, 3, 17);
+        decode(ArrayProtocol.TYPE_PROBE);
+        assertEquals(3, mMessage.round);
+        assertEquals(17, mMessage.probe);
+    }
+
+    @Test
+    public void probeReplyWithPatchedSendTime() {
+        int position = ArrayProtocol.encodeProbeReply(mBuffer, SEQ, 3, 17, TIME);
+        ArrayProtocol.patchSendTime(mBuffer, position, TIME + 50000);
+        decode(ArrayProtocol.TYPE_PROBE_REPLY);
+        assertEquals(3, mMessage.round);
+        assertEquals(17, mMessage.probe);
+        assertEquals(TIME, mMessage.receiveTime);
+        assertEquals(TIME + 50000, mMessage.sendTime);
+    }
+
+    @Test
+    public void nack() {
+        ArrayProtocol.encodeNack(mBuffer, SEQ, 100, 4);
+        decode(ArrayProtocol.TYPE_NACK);
+        assertEquals(100, mMessage.first);
+        assertEquals(4, mMessage.count);
+    }
+
+    @Test
+    public void framesDecodeBackToBack() {
+        ArrayProtocol.encodeStop(mBuffer, 1, TIME);
+        ArrayProtocol.encodeNack(mBuffer, 2, 7, 1);
+        mBuffer.flip();
+        assertEquals(ArrayProtocol.DECODE_OK, ArrayProtocol.decode(mBuffer, mMessage));
+        assertEquals(ArrayProtocol.TYPE_STOP, mMessage.type);
+        assertEquals(ArrayProtocol.DECODE_OK, ArrayProtocol.decode(mBuffer, mMessage));
+        assertEquals(ArrayProtocol.TYPE_NACK, mMessage.type);
+        assertEquals(2, mMessage.seq);
+        assertFalse(mBuffer.hasRemaining());
+    }
+
+    @Test
+    public void everyTypeFitsMaxFrameSize() {
+        for (byte type = ArrayProtocol.TYPE_SYNCH; type <= ArrayProtocol.TYPE_KEYFRAME; type++) {
+            assertTrue("Type " + type,
+                    ArrayProtocol.frameSize(type) <= ArrayProtocol.MAX_FRAME_SIZE);
+        }
+    }
+
+    @Test
+    public void truncatedFrameNeedsMore() {
+        ArrayProtocol.encodeSteer(mBuffer, SEQ, TIME, new int[0], new float[0], 0);
+        int size = mBuffer.position();
+        for (int limit = 0; limit < size; limit++) {
+            mBuffer.position(0).limit(limit);
+            assertEquals("Limit " + limit, ArrayProtocol.DECODE_NEED_MORE,
+                    ArrayProtocol.decode(mBuffer, mMessage));
+            assertEquals(0, mBuffer.position());
+        }
+    }
+
+    @Test
+    public void badVersionIsRejected() {
+        ArrayProtocol.encodeStop(mBuffer, SEQ, TIME);
+        mBuffer.put(2, (byte) (ArrayProtocol.VERSION + 1));
+        mBuffer.flip();
+        assertEquals(ArrayProtocol.DECODE_BAD_VERSION, ArrayProtocol.decode(mBuffer, mMessage));
+        assertEquals(0, mBuffer.position());
+    }
+
+    @Test
+    public void badTypeIsRejected() {
+        ArrayProtocol.encodeStop(mBuffer, SEQ, TIME);
+        mBuffer.put(3, (byte) 0);
+        mBuffer.flip();
+        assertEquals(ArrayProtocol.DECODE_BAD_TYPE, ArrayProtocol.check(mBuffer));
+        mBuffer.put(3, (byte) (ArrayProtocol.TYPE_KEYFRAME + 1));
+        assertEquals(ArrayProtocol.DECODE_BAD_TYPE, ArrayProtocol.check(mBuffer));
+    }
+
+    @Test
+    public void lengthNotMatchingTypeIsRejected() {
+        // A STOP frame claiming, and carrying, four more payload bytes
+        ArrayProtocol.encodeStop(mBuffer, SEQ, TIME);
+        mBuffer.putInt(0);
+        mBuffer.putShort(0, (short) (mBuffer.position() - ArrayProtocol.LENGTH_SIZE));
+        mBuffer.flip();
+        assertEquals(ArrayProtocol.DECODE_BAD_LENGTH, ArrayProtocol.decode(mBuffer, mMessage));
+        assertEquals(0, mBuffer.position());
+    }
+
+    @Test
+    public void lengthShorterThanHeaderIsRejected() {
+        mBuffer.putShort((short) (ArrayProtocol.HEADER_SIZE - ArrayProtocol.LENGTH_SIZE - 1));
+        mBuffer.flip();
+        assertEquals(ArrayProtocol.DECODE_BAD_LENGTH, ArrayProtocol.check(mBuffer));
+    }
+
+    @Test
+    public void lengthOverMaxFrameSizeIsRejectedEarly() {
+        // Rejected from the length field alone, without waiting for the rest
+        mBuffer.putShort((short) (ArrayProtocol.MAX_FRAME_SIZE - ArrayProtocol.LENGTH_SIZE + 1));
+        mBuffer.flip();
+        assertEquals(ArrayProtocol.DECODE_BAD_LENGTH, ArrayProtocol.check(mBuffer));
+
+        mBuffer.clear();
+        mBuffer.putShort((short) 0xffff);
+        mBuffer.flip();
+        assertEquals(ArrayProtocol.DECODE_BAD_LENGTH, ArrayProtocol.check(mBuffer));
+    }
+
+    @Test
+    public void throughput() {
+        // Far below what the codec does on any device, only catches gross regressions
+        final int frames = 200000;
+        final double minFramesPerSecond = 100000;
+        int[] delays = new int[ArrayProtocol.STEER_SLOTS];
+        float[] weights = new float[ArrayProtocol.STEER_SLOTS];
+        long sum = 0;
+
+        long start = System.nanoTime();
+        for (int i = 0; i < frames; i++) {
+            mBuffer.clear();
+            switch (i % 4) {
+                case 0:
+                    ArrayProtocol.encodePlay(mBuffer, i, TIME);
+                    break;
+                case 1:
+                    ArrayProtocol.encodeSteer(mBuffer, i, TIME, delays, weights, delays.length);
+                    break;
+                case 2:
+                    ArrayProtocol.encodeProbe(mBuffer, i, i, i);
+                    break;
+                default:
+                    ArrayProtocol.encodeKeyframe(mBuffer, i, TIME, delays, delays.length);
+                    break;
+            }
+            mBuffer.flip();
+            assertEquals(ArrayProtocol.DECODE_OK, ArrayProtocol.decode(mBuffer, mMessage));
+            sum += mMessage.seq;
+        }
+        long elapsed = System.nanoTime() - start;
+
+        assertEquals((long) frames * (frames - 1) / 2, sum);
+        double framesPerSecond = frames * 1e9 / elapsed;
+        assertTrue(framesPerSecond + " frames/s", framesPerSecond >= minFramesPerSecond);
+    }
+
+    @Test
+    public void commandsAreTheSequencedTypes() {
+        assertTrue(ArrayProtocol.isCommand(ArrayProtocol.TYPE_PLAY));
+        assertTrue(ArrayProtocol.isCommand(ArrayProtocol.TYPE_STEER));
+        assertTrue(ArrayProtocol.isCommand(ArrayProtocol.TYPE_KEYFRAME));
+        assertFalse(ArrayProtocol.isCommand(ArrayProtocol.TYPE_PROBE));
+        assertFalse(ArrayProtocol.isCommand(ArrayProtocol.TYPE_NACK));
+        assertFalse(ArrayProtocol.isCommand(ArrayProtocol.TYPE_ASSIGN));
+    }
+
+}
@@ -0,0 +1,139 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.phasedarray;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class BeamformerTest {
+
+    private static final int SLOTS = ArrayProtocol.STEER_SLOTS;
+
+    // A point this far from the array is in the far field
+    private static final double FAR = 1000;
+
+    // Wavefront curvature over a few meters of array at FAR, in seconds
+    private static final double FAR_FIELD_ERROR = 20e-6;
+
+    private static final double[] ANGLES = {0, 30, 60, 90, 120, 150, 180};
+
+    // Check steering towards an angle matches focusing on a far point in that direction,
+    // seen from (cx, cy)
+    private static void assertSteerMatchesFarFocus(Beamformer beamformer, double cx, double cy) {
+        double[] steered = new double[SLOTS];
+        double[] focused = new double[SLOTS];
+        for (double angle : ANGLES) {
+            double a = Math.toRadians(angle);
+            beamformer.steer(angle, 0, steered, 0);
+            beamformer.focus(cx + FAR * Math.cos(a), cy + FAR * Math.sin(a), 0, focused, 0);
+            for (int i = 0; i < SLOTS; i++) {
+                assertEquals("Slot " + i + " at " + angle, focused[i], steered[i],
+                        FAR_FIELD_ERROR);
+            }
+        }
+    }
+
+    @Test
+    public void steeringMatchesFarFocusOnLine() {
+        Beamformer beamformer = new Beamformer(SLOTS);
+        assertSteerMatchesFarFocus(beamformer, (SLOTS - 1) * Beamformer.DEFAULT_SPACING / 2, 0);
+    }
+
+    @Test
+    public void steeringMatchesFarFocusOnPlacedLayout() {
+        Beamformer beamformer = new Beamformer(SLOTS);
+        for (int i = 0; i < SLOTS; i++) {
+            // A loose arc around the origin
+            double a = Math.toRadians(15 * i);
+            beamformer.setPosition(i, 2 * Math.cos(a), 1.5 * Math.sin(a), 0);
+        }
+        beamformer.setOccupied(3, false);
+        assertSteerMatchesFarFocus(beamformer, 0, 0);
+    }
+
+    @Test
+    public void speakerFurthestAlongBeamIsDelayedMost() {
+        Beamformer beamformer = new Beamformer(SLOTS);
+        double[] delays = new double[SLOTS];
+        beamformer.steer(0, 0, delays, 0);
+        assertEquals(0, delays[0], 0);
+        double spacing = Beamformer.DEFAULT_SPACING / Beamformer.DEFAULT_SPEED_OF_SOUND;
+        for (int i = 1; i < SLOTS; i++) {
+            assertEquals(i * spacing, delays[i], 1e-12);
+        }
+    }
+
+    @Test
+    public void broadsideNeedsNoDelay() {
+        Beamformer beamformer = new Beamformer(SLOTS);
+        double[] delays = new double[SLOTS];
+        beamformer.steer(90, 0, delays, 0);
+        for (int i = 0; i < SLOTS; i++) {
+            assertEquals(0, delays[i], 1e-12);
+        }
+    }
+
+    @Test
+    public void unoccupiedSlotsAreLeftOut() {
+        Beamformer beamformer = new Beamformer(SLOTS);
+        for (int i = 0; i < 4; i++) {
+            beamformer.setOccupied(i, false);
+        }
+        double[] delays = new double[SLOTS];
+        beamformer.steer(0, 0, delays, 0);
+        for (int i = 0; i < 4; i++) {
+            assertEquals(0, delays[i], 0);
+        }
+        // The first occupied slot trails now
+        assertEquals(0, delays[4], 1e-12);
+        assertTrue(delays[5] > 0);
+    }
+
+    @Test
+    public void delaysGoToTheOffset() {
+        Beamformer beamformer = new Beamformer(SLOTS);
+        double[] direct = new double[SLOTS];
+        double[] shifted = new double[SLOTS + 3];
+        beamformer.steer(45, 10, direct, 0);
+        beamformer.steer(45, 10, shifted, 3);
+        for (int i = 0; i < SLOTS; i++) {
+            assertEquals(direct[i], shifted[3 + i], 0);
+        }
+    }
+
+    @Test
+    public void changesBumpTheVersion() {
+        Beamformer beamformer = new Beamformer(SLOTS);
+        int version = beamformer.getVersion();
+        beamformer.setPosition(0, 1, 2, 3);
+        assertTrue(beamformer.getVersion() != version);
+
+        version = beamformer.getVersion();
+        beamformer.setOccupied(0, false);
+        assertTrue(beamformer.getVersion() != version);
+
+        version = beamformer.getVersion();
+        beamformer.setOccupied(0, false);
+        assertEquals(version, beamformer.getVersion());
+
+        beamformer.setSpeedOfSound(340);
+        assertTrue(beamformer.getVersion() != version);
+    }
+
+}
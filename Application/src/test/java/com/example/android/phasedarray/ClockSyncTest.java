@@ -0,0 +1,103 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.phasedarray;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class ClockSyncTest {
+
+    private static final long MS = 1000000L;
+
+    // Peer clock minus local clock
+    private static final long OFFSET = 5 * MS;
+
+    // Add a round trip sent at local time t1 with the given one way delays
+    private static void probe(ClockSync sync, long t1, long out, long back) {
+        long t2 = t1 + out + OFFSET;
+        long t3 = t2 + 100000;
+        long t4 = t3 - OFFSET + back;
+        assertTrue(sync.addSample(t1, t2, t3, t4));
+    }
+
+    @Test
+    public void symmetricPathGivesExactOffset() {
+        ClockSync sync = new ClockSync();
+        probe(sync, 0, 2 * MS, 2 * MS);
+        assertEquals(OFFSET, sync.getOffset());
+        assertEquals(4 * MS, sync.getDelay());
+    }
+
+    @Test
+    public void asymmetricSamplesAreIntersected() {
+        ClockSync sync = new ClockSync();
+        // Each alone is biased by a millisecond in opposite directions
+        probe(sync, 0, 1 * MS, 3 * MS);
+        probe(sync, 10 * MS, 3 * MS, 1 * MS);
+        assertEquals(OFFSET, sync.getOffset());
+        // Bounds [offset - 3, offset + 1] and [offset - 1, offset + 3] overlap by 2 ms
+        assertEquals(1 * MS, sync.getOffsetError());
+    }
+
+    @Test
+    public void errorBoundContainsTrueOffset() {
+        ClockSync sync = new ClockSync();
+        long[][] paths = {{1, 4}, {2, 2}, {5, 1}, {1, 1}, {3, 7}, {6, 2}};
+        for (int i = 0; i < paths.length; i++) {
+            probe(sync, i * 10 * MS, paths[i][0] * MS, paths[i][1] * MS);
+            assertTrue(Math.abs(sync.getOffset() - OFFSET) <= sync.getOffsetError());
+        }
+    }
+
+    @Test
+    public void slowRoundTripsAreIgnored() {
+        ClockSync sync = new ClockSync(16, 2);
+        probe(sync, 0, 1 * MS, 1 * MS);
+        probe(sync, 10 * MS, 1 * MS, 1 * MS);
+        // Queued replies, badly asymmetric, must not move the estimate
+        for (int i = 0; i < 10; i++) {
+            probe(sync, (20 + i) * MS, 1 * MS, 40 * MS);
+        }
+        assertEquals(OFFSET, sync.getOffset());
+        assertEquals(2 * MS, sync.getDelay());
+    }
+
+    @Test
+    public void disjointBoundsFallBackToFastestSample() {
+        ClockSync sync = new ClockSync(8, 2);
+        // Path asymmetry beyond the round trip, e.g. a clock step between the samples
+        probe(sync, 0, 1 * MS, 1 * MS);
+        assertTrue(sync.addSample(10 * MS, 10 * MS + 3 * MS + OFFSET + 10 * MS,
+                10 * MS + 3 * MS + OFFSET + 10 * MS, 10 * MS + 6 * MS));
+        assertEquals(OFFSET, sync.getOffset());
+        assertEquals(1 * MS, sync.getOffsetError());
+    }
+
+    @Test
+    public void inconsistentTimestampsAreDropped() {
+        ClockSync sync = new ClockSync();
+        // Reply before the request
+        assertFalse(sync.addSample(10, 20, 15, 30));
+        // Negative round trip
+        assertFalse(sync.addSample(10, 20, 40, 20));
+        assertFalse(sync.hasEstimate());
+    }
+
+}
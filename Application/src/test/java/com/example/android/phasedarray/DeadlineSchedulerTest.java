@@ -0,0 +1,83 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.phasedarray;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class DeadlineSchedulerTest {
+
+    private static final int TASKS = 200;
+
+    // Schedule one action per deadline, return their indices in the order they fired
+    private static List<Integer> run(long[] deadlines) throws InterruptedException {
+        final List<Integer> fired = new ArrayList<>();
+        final CountDownLatch done = new CountDownLatch(deadlines.length);
+        DeadlineScheduler scheduler = new DeadlineScheduler();
+        for (int i = 0; i < deadlines.length; i++) {
+            final int index = i;
+            scheduler.schedule(deadlines[i], new Runnable() {
+                @Override
+                public void run() {
+                    synchronized (fired) {
+                        fired.add(index);
+                    }
+                    done.countDown();
+                }
+            });
+        }
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        scheduler.shutdown();
+        return fired;
+    }
+
+    @Test
+    public void equalDeadlinesFireInScheduleOrder() throws InterruptedException {
+        // Like keyframes handed over in one nanoTime tick, already due
+        long[] deadlines = new long[TASKS];
+        long now = System.nanoTime();
+        for (int i = 0; i < TASKS; i++) {
+            deadlines[i] = now;
+        }
+        List<Integer> fired = run(deadlines);
+        for (int i = 0; i < TASKS; i++) {
+            assertEquals(i, (int) fired.get(i));
+        }
+    }
+
+    @Test
+    public void earlierDeadlinesFireFirst() throws InterruptedException {
+        // Scheduled latest first, all in the near future
+        long[] deadlines = new long[TASKS];
+        long start = System.nanoTime() + 20000000L;
+        for (int i = 0; i < TASKS; i++) {
+            deadlines[i] = start + (TASKS - i) * 10000L;
+        }
+        List<Integer> fired = run(deadlines);
+        for (int i = 0; i < TASKS; i++) {
+            assertEquals(TASKS - 1 - i, (int) fired.get(i));
+        }
+    }
+
+}
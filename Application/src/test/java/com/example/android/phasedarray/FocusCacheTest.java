@@ -0,0 +1,89 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.phasedarray;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+
+public class FocusCacheTest {
+
+    private static final int SLOTS = ArrayProtocol.STEER_SLOTS;
+
+    private Beamformer mBeamformer;
+    private FocusCache mCache;
+
+    @Before
+    public void setUp() {
+        mBeamformer = new Beamformer(SLOTS);
+        mCache = new FocusCache(mBeamformer);
+    }
+
+    @Test
+    public void delaysAreTheCellCentersFocus() {
+        double[] focused = new double[SLOTS];
+        mBeamformer.focus(1.0, 2.0, 0, focused, 0);
+        int[] delays = mCache.getDelays(1.01, 1.99, 0.01);
+        for (int i = 0; i < SLOTS; i++) {
+            assertEquals("Slot " + i, Math.round(focused[i] * 1e9), delays[i], 1);
+        }
+    }
+
+    @Test
+    public void sameCellReturnsSameDelays() {
+        int[] delays = mCache.getDelays(1.0, 2.0, 0);
+        assertSame(delays, mCache.getDelays(1.02, 2.02, 0.02));
+        assertNotSame(delays, mCache.getDelays(1.05, 2.0, 0));
+    }
+
+    @Test
+    public void negativeCoordinatesGetTheirOwnCells() {
+        int[] delays = mCache.getDelays(-1.0, 2.0, 0);
+        assertNotSame(delays, mCache.getDelays(1.0, 2.0, 0));
+        assertSame(delays, mCache.getDelays(-1.0, 2.0, 0));
+    }
+
+    @Test
+    public void leastRecentlyUsedCellIsEvicted() {
+        int[] first = mCache.getDelays(0, 1, 0);
+        int[] second = mCache.getDelays(0, 1 + FocusCache.CELL_SIZE, 0);
+        // Touch the first so the second is the eldest when the cache overflows
+        assertSame(first, mCache.getDelays(0, 1, 0));
+        for (int i = 0; i < FocusCache.CAPACITY - 1; i++) {
+            mCache.getDelays(0, 2 + i * FocusCache.CELL_SIZE, 0);
+        }
+        assertSame(first, mCache.getDelays(0, 1, 0));
+        assertNotSame(second, mCache.getDelays(0, 1 + FocusCache.CELL_SIZE, 0));
+    }
+
+    @Test
+    public void beamformerChangeEmptiesTheCache() {
+        int[] delays = mCache.getDelays(1.0, 2.0, 0);
+        mBeamformer.setPosition(0, -1, 0, 0);
+        assertNotSame(delays, mCache.getDelays(1.0, 2.0, 0));
+
+        delays = mCache.getDelays(1.0, 2.0, 0);
+        mBeamformer.setOccupied(1, false);
+        int[] refreshed = mCache.getDelays(1.0, 2.0, 0);
+        assertNotSame(delays, refreshed);
+        assertEquals(0, refreshed[1]);
+    }
+
+}
@@ -0,0 +1,111 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.phasedarray;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class PeerClockTest {
+
+    private static final long MS = 1000000L;
+    private static final long SECOND = 1000 * MS;
+
+    private static final long OFFSET = 123 * MS;
+    private static final double SKEW = 20e-6;
+
+    // Half of a round's probes get a reply
+    private static final int PROBES = PingSequencer.DEFAULT_PROBES / 2;
+    private static final long CADENCE = 2 * MS;
+    private static final long ROUND_INTERVAL = 3 * SECOND;
+
+    // Well within a sample period at 44.1 kHz
+    private static final long TOLERANCE = 20000;
+
+    private final Random mRandom = new Random(1);
+
+    // The group owner's clock, drifting against the local one
+    private static long remote(long local) {
+        return OFFSET + local + Math.round(local * SKEW);
+    }
+
+    // One way delay, 1 ms plus queueing of 200 us on average
+    private long path() {
+        return MS + (long) (-Math.log(1 - mRandom.nextDouble()) * 200000);
+    }
+
+    private void round(PeerClock clock, long start) {
+        clock.startRound();
+        for (int i = 0; i < PROBES; i++) {
+            long t1 = start + i * CADENCE;
+            long arrival = t1 + path();
+            long t2 = remote(arrival);
+            long t3 = remote(arrival + 50000);
+            long t4 = arrival + 50000 + path();
+            assertTrue(clock.addSample(t1, t2, t3, t4));
+        }
+        assertTrue(clock.finishRound());
+    }
+
+    @Test
+    public void followsDriftAcrossRounds() {
+        PeerClock clock = new PeerClock();
+        for (int r = 0; r < 4; r++) {
+            long start = r * ROUND_INTERVAL;
+            round(clock, start);
+            // A command due a second after the round
+            long local = start + SECOND;
+            long error = clock.toLocalTime(remote(local)) - local;
+            assertTrue("Round " + r + " off by " + error + " ns",
+                    Math.abs(error) < TOLERANCE + (r == 0 ? Math.round(SECOND * SKEW) : 0));
+        }
+        assertEquals(SKEW, clock.getSkew(), 5e-6);
+    }
+
+    @Test
+    public void roundOnlyUsesItsOwnSamples() {
+        PeerClock clock = new PeerClock();
+        round(clock, 0);
+        // By the second round the offset moved by 60 us, the first round's fast samples
+        // would hold it back
+        round(clock, ROUND_INTERVAL);
+        long expected = remote(ROUND_INTERVAL) - ROUND_INTERVAL;
+        assertTrue(Math.abs(clock.getOffset() - expected) < TOLERANCE);
+    }
+
+    @Test
+    public void conversionsAreInverse() {
+        PeerClock clock = new PeerClock();
+        round(clock, 0);
+        round(clock, ROUND_INTERVAL);
+        long local = 10 * SECOND;
+        assertEquals(local, clock.toLocalTime(clock.toRemoteTime(local)), 1);
+    }
+
+    @Test
+    public void emptyRoundAddsNothing() {
+        PeerClock clock = new PeerClock();
+        clock.startRound();
+        assertFalse(clock.finishRound());
+        assertFalse(clock.hasEstimate());
+    }
+
+}
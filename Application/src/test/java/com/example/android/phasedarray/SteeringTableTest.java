@@ -0,0 +1,178 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.phasedarray;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class SteeringTableTest {
+
+    private static final int SLOTS = ArrayProtocol.STEER_SLOTS;
+
+    private Beamformer mBeamformer;
+    private SteeringTable mTable;
+    private final int[] mDelays = new int[SLOTS];
+    private final int[] mOther = new int[SLOTS];
+
+    @Before
+    public void setUp() {
+        mBeamformer = new Beamformer(SLOTS);
+        mTable = new SteeringTable(mBeamformer);
+    }
+
+    // Check the table against the beamformer at an angle, within tolerance nanoseconds
+    private void assertMatchesSteer(double angle, double tolerance) {
+        double[] steered = new double[SLOTS];
+        mBeamformer.steer(angle, 0, steered, 0);
+        mTable.getDelays(angle, mDelays);
+        for (int i = 0; i < SLOTS; i++) {
+            assertEquals("Slot " + i + " at " + angle, Math.round(steered[i] * 1e9), mDelays[i],
+                    tolerance);
+        }
+    }
+
+    // On a row the table holds the beamformer's delays, rounded
+    private void assertMatchesSteer(double angle) {
+        assertMatchesSteer(angle, 1);
+    }
+
+    @Test
+    public void rowsMatchSteering() {
+        assertMatchesSteer(0);
+        assertMatchesSteer(12.3);
+        assertMatchesSteer(90);
+        assertMatchesSteer(150.7);
+        assertMatchesSteer(180);
+    }
+
+    @Test
+    public void betweenRowsIsInterpolated() {
+        int[] below = new int[SLOTS];
+        int[] above = new int[SLOTS];
+        mTable.getDelays(45.0, below);
+        mTable.getDelays(45.1, above);
+        mTable.getDelays(45.05, mDelays);
+        for (int i = 0; i < SLOTS; i++) {
+            assertEquals("Slot " + i, (below[i] + above[i]) / 2.0, mDelays[i], 1);
+        }
+        // Linear across 0.1 degrees is far below a sample off
+        assertMatchesSteer(45.05, 10);
+    }
+
+    @Test
+    public void anglesOutsideTheRangeAreClamped() {
+        mTable.getDelays(SteeringTable.MIN_ANGLE, mOther);
+        mTable.getDelays(-30, mDelays);
+        for (int i = 0; i < SLOTS; i++) {
+            assertEquals(mOther[i], mDelays[i]);
+        }
+        mTable.getDelays(SteeringTable.MAX_ANGLE, mOther);
+        mTable.getDelays(270, mDelays);
+        for (int i = 0; i < SLOTS; i++) {
+            assertEquals(mOther[i], mDelays[i]);
+        }
+    }
+
+    @Test
+    public void sweepKeyframesMatchSteering() {
+        // As WiFiDirectService.writeSweep plans it
+        int max = CommandWindow.DEFAULT_SIZE;
+        long duration = 4000000000L;
+        long[] offsets = new long[max];
+        double[] angles = new double[max];
+        int count = SteeringTable.planSweep(0, 180, duration, max, offsets, angles);
+
+        // 5 degree steps would take 37 keyframes, the cap spreads them evenly instead
+        assertEquals(max, count);
+        assertEquals(0, offsets[0]);
+        assertEquals(duration, offsets[count - 1]);
+        assertEquals(180, angles[count - 1], 1e-9);
+        for (int i = 0; i < count; i++) {
+            if (i > 0) {
+                assertTrue(offsets[i] > offsets[i - 1]);
+                assertEquals(180.0 / (count - 1), angles[i] - angles[i - 1], 1e-9);
+            }
+            // Keyframes fall between rows
+            assertMatchesSteer(angles[i], 10);
+        }
+
+        // The beam starts along +x, where the last slot is furthest ahead, and ends along -x
+        mTable.getDelays(angles[0], mDelays);
+        assertEquals(0, mDelays[0]);
+        assertTrue(mDelays[SLOTS - 1] > 0);
+        mTable.getDelays(angles[count - 1], mDelays);
+        assertTrue(mDelays[0] > 0);
+        assertEquals(0, mDelays[SLOTS - 1]);
+    }
+
+    @Test
+    public void shortSweepStepsBySweepStep() {
+        long[] offsets = new long[CommandWindow.DEFAULT_SIZE];
+        double[] angles = new double[CommandWindow.DEFAULT_SIZE];
+        int count = SteeringTable.planSweep(60, 80, 1000, offsets.length, offsets, angles);
+        assertEquals(20 / SteeringTable.SWEEP_STEP + 1, count, 0);
+        for (int i = 1; i < count; i++) {
+            assertEquals(SteeringTable.SWEEP_STEP, angles[i] - angles[i - 1], 1e-9);
+        }
+    }
+
+    @Test
+    public void longSweepIsCappedToMaxKeyframes() {
+        long[] offsets = new long[4];
+        double[] angles = new double[4];
+        assertEquals(4, SteeringTable.planSweep(180, 0, 1000, 4, offsets, angles));
+        assertEquals(180, angles[0], 0);
+        assertEquals(0, angles[3], 0);
+        assertEquals(1000, offsets[3]);
+    }
+
+    @Test
+    public void rebuildsAfterPositionChange() {
+        mTable.getDelays(30, mOther);
+        mBeamformer.setPosition(SLOTS - 1, 20, 0, 0);
+        mTable.getDelays(30, mDelays);
+        assertTrue(mDelays[SLOTS - 1] > mOther[SLOTS - 1]);
+        assertMatchesSteer(30);
+    }
+
+    @Test
+    public void rebuildsAfterOccupancyChange() {
+        mTable.getDelays(30, mOther);
+        mBeamformer.setOccupied(0, false);
+        mTable.getDelays(30, mDelays);
+        assertEquals(0, mDelays[0]);
+        // Slot 1 trails now instead of slot 0
+        assertEquals(0, mDelays[1]);
+        assertTrue(mOther[1] > 0);
+        assertMatchesSteer(30);
+    }
+
+    @Test
+    public void rebuildsAfterSpeedOfSoundChange() {
+        mTable.getDelays(30, mOther);
+        mBeamformer.setSpeedOfSound(Beamformer.DEFAULT_SPEED_OF_SOUND / 2);
+        mTable.getDelays(30, mDelays);
+        for (int i = 1; i < SLOTS; i++) {
+            assertEquals(2.0 * mOther[i], mDelays[i], 2);
+        }
+        assertMatchesSteer(30);
+    }
+
+}
@@ -0,0 +1,109 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.phasedarray;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class TaperTest {
+
+    private static final int[] TYPES = {Taper.UNIFORM, Taper.HANN, Taper.HAMMING,
+            Taper.CHEBYSHEV};
+
+    private final double[] mWeights = new double[ArrayProtocol.STEER_SLOTS];
+
+    // Response of an evenly spaced line at a phase step psi between neighbours
+    private double response(int count, double psi) {
+        double re = 0;
+        double im = 0;
+        for (int n = 0; n < count; n++) {
+            re += mWeights[n] * Math.cos(n * psi);
+            im += mWeights[n] * Math.sin(n * psi);
+        }
+        return Math.hypot(re, im);
+    }
+
+    // Highest sidelobe relative to the main lobe, in dB
+    private double sidelobeDb(int count) {
+        final int points = 20000;
+        double peak = response(count, 0);
+        double previous = peak;
+        double highest = 0;
+        boolean pastMainLobe = false;
+        for (int i = 1; i <= points; i++) {
+            double value = response(count, Math.PI * i / points);
+            if (!pastMainLobe) {
+                // The main lobe ends at its first null
+                pastMainLobe = value > previous;
+            }
+            if (pastMainLobe) {
+                highest = Math.max(highest, value);
+            }
+            previous = value;
+        }
+        return 20 * Math.log10(highest / peak);
+    }
+
+    @Test
+    public void uniformIsAllOnes() {
+        Taper.window(Taper.UNIFORM, 7, 0, mWeights);
+        for (int n = 0; n < 7; n++) {
+            assertEquals(1, mWeights[n], 0);
+        }
+    }
+
+    @Test
+    public void windowsAreSymmetricAndPeakAtOne() {
+        for (int type : TYPES) {
+            for (int count = 1; count <= ArrayProtocol.STEER_SLOTS; count++) {
+                Taper.window(type, count, Taper.DEFAULT_SIDELOBE_DB, mWeights);
+                double max = 0;
+                for (int n = 0; n < count; n++) {
+                    assertTrue("Type " + type + " count " + count, mWeights[n] > 0);
+                    assertEquals(mWeights[n], mWeights[count - 1 - n], 1e-9);
+                    max = Math.max(max, mWeights[n]);
+                }
+                assertEquals(1, max, 1e-12);
+            }
+        }
+    }
+
+    @Test
+    public void chebyshevSidelobesSitAtTheRequestedLevel() {
+        for (int count = 5; count <= ArrayProtocol.STEER_SLOTS; count++) {
+            Taper.window(Taper.CHEBYSHEV, count, 30, mWeights);
+            // Equal ripple, every sidelobe at the level
+            assertEquals("Count " + count, -30, sidelobeDb(count), 0.1);
+        }
+    }
+
+    @Test
+    public void taperingLowersSidelobes() {
+        int count = ArrayProtocol.STEER_SLOTS;
+        Taper.window(Taper.UNIFORM, count, 0, mWeights);
+        double uniform = sidelobeDb(count);
+        // About -13 dB for a uniform line
+        assertEquals(-13, uniform, 1);
+        Taper.window(Taper.HANN, count, 0, mWeights);
+        assertTrue(sidelobeDb(count) < uniform - 10);
+        Taper.window(Taper.HAMMING, count, 0, mWeights);
+        assertTrue(sidelobeDb(count) < uniform - 10);
+    }
+
+}